@@ -4,9 +4,11 @@ import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @MapperScan("com.hmdp.mapper")
 @EnableAspectJAutoProxy(exposeProxy = true)     // 暴露代理对象
+@EnableScheduling       // 开启定时任务
 @SpringBootApplication
 public class HmDianPingApplication {
 
@@ -0,0 +1,86 @@
+package com.hmdp.config;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.service.IBlogService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时为店铺、博客、用户的id建立布隆过滤器
+ * 过滤器在bean初始化时就创建好，tomcat开始接收请求后新增的id都能写进去；全量加载在启动完成后进行，加载完成前不拦截
+ */
+@Slf4j
+@Order(1)
+@Configuration
+public class BloomFilterConfig implements ApplicationRunner {
+
+    // 每批从数据库读取的id个数
+    private static final int LOAD_BATCH_SIZE = 5000;
+
+    @Resource
+    private BloomFilterClient bloomFilterClient;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IBlogService blogService;
+
+    @Resource
+    private IUserService userService;
+
+    @PostConstruct
+    public void init() {
+        bloomFilterClient.register(CACHE_SHOP_KEY, BLOOM_EXPECTED_INSERTIONS, BLOOM_FPP);
+        bloomFilterClient.register(CACHE_BLOG_KEY, BLOOM_EXPECTED_INSERTIONS, BLOOM_FPP);
+        bloomFilterClient.register(CACHE_USER_KEY, BLOOM_EXPECTED_INSERTIONS, BLOOM_FPP);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        load(CACHE_SHOP_KEY, shopService);
+        load(CACHE_BLOG_KEY, blogService);
+        load(CACHE_USER_KEY, userService);
+    }
+
+    private <T> void load(String keyPrefix, IService<T> service) {
+        try {
+            // 按id游标分批读取，不用offset分页，避免越往后越慢
+            long lastId = 0;
+            int total = 0;
+            List<Long> ids;
+            do {
+                ids = service.listObjs(new QueryWrapper<T>()
+                                .select("id")
+                                .gt("id", lastId)
+                                .orderByAsc("id")
+                                .last("limit " + LOAD_BATCH_SIZE),
+                        id -> ((Number) id).longValue());
+                if (ids.isEmpty()) {
+                    break;
+                }
+                bloomFilterClient.load(keyPrefix, ids);
+                lastId = ids.get(ids.size() - 1);
+                total += ids.size();
+            } while (ids.size() == LOAD_BATCH_SIZE);
+            bloomFilterClient.finishLoad(keyPrefix);
+            log.info("布隆过滤器加载完成，前缀：{}，id个数：{}", keyPrefix, total);
+        } catch (Exception e) {
+            // 加载失败时过滤器不生效，请求照常访问缓存和数据库
+            log.error("布隆过滤器加载失败，前缀：{}", keyPrefix, e);
+        }
+    }
+}
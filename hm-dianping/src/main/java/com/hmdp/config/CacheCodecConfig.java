@@ -0,0 +1,24 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.codec.BinaryCacheCodec;
+import com.hmdp.utils.codec.CacheCodec;
+import com.hmdp.utils.codec.JsonCacheCodec;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 缓存值的编码方式，默认json，配置为binary时使用二进制编码
+ */
+@Configuration
+public class CacheCodecConfig {
+
+    @Bean
+    public CacheCodec cacheCodec(@Value("${hmdp.cache.codec:json}") String codec,
+                                 @Value("${hmdp.cache.compress-threshold:1024}") int compressThreshold) {
+        if ("binary".equalsIgnoreCase(codec)) {
+            return new BinaryCacheCodec(compressThreshold);
+        }
+        return new JsonCacheCodec();
+    }
+}
@@ -0,0 +1,227 @@
+package com.hmdp.config;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillStockClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 缓存预热
+ * 启动时把店铺（逻辑过期缓存 + GEO）、店铺类型、进行中的秒杀券库存写入redis，预热完成之前节点不接收流量；
+ * 运行期间定时预热即将开始的秒杀活动
+ */
+@Slf4j
+@Order(2)
+@Configuration
+public class CacheWarmUpConfig implements ApplicationRunner {
+
+    // 每批从数据库读取的行数，同时也是一次pipeline写入的条数
+    private static final int WARM_UP_BATCH_SIZE = 2000;
+
+    @Resource
+    private ApplicationContext applicationContext;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    // 秒杀活动提前多少分钟预热
+    @Value("${hmdp.warm-up.promotion-lead-minutes:10}")
+    private long promotionLeadMinutes;
+
+    // 已经预热到的秒杀开始时间，之后只预热在这之后开始的活动
+    private volatile LocalDateTime promotionWarmedUntil;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        // 预热完成之前不接收流量
+        AvailabilityChangeEvent.publish(applicationContext, ReadinessState.REFUSING_TRAFFIC);
+        long begin = System.currentTimeMillis();
+        try {
+            warmUpShopTypes();
+            warmUpShops();
+            promotionWarmedUntil = LocalDateTime.now();
+            warmUpSeckillVouchers(seckillVoucherService.query()
+                    .gt("end_time", promotionWarmedUntil)
+                    .inSql("voucher_id", "select id from tb_voucher where status = 1")
+                    .list());
+            log.info("缓存预热完成，耗时：{}ms", System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            // 预热失败不影响启动，缓存会在第一次访问时加载
+            log.error("缓存预热失败", e);
+        }
+        AvailabilityChangeEvent.publish(applicationContext, ReadinessState.ACCEPTING_TRAFFIC);
+    }
+
+    /**
+     * 店铺类型整体缓存在一个list中，格式与ShopTypeServiceImpl保持一致
+     */
+    private void warmUpShopTypes() {
+        List<ShopType> shopTypes = shopTypeService.query().orderByAsc("sort").list();
+        if (shopTypes.isEmpty()) {
+            return;
+        }
+        byte[] key = CACHE_SHOP_TYPE_KEY.getBytes(StandardCharsets.UTF_8);
+        byte[] value = JSONUtil.toJsonStr(shopTypes).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            connection.keyCommands().del(key);
+            connection.listCommands().lPush(key, value);
+            return null;
+        });
+    }
+
+    /**
+     * 按id游标分批读取店铺，读取下一批的同时由单独的线程写入上一批，数据库和redis的耗时互相重叠
+     */
+    private void warmUpShops() {
+        ExecutorService writer = Executors.newSingleThreadExecutor(
+                ThreadFactoryBuilder.create().setNamePrefix("cache-warm-up-").build());
+        try {
+            CompletableFuture<Void> pending = CompletableFuture.completedFuture(null);
+            long lastId = 0;
+            int total = 0;
+            List<Shop> shops;
+            do {
+                shops = shopService.query()
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + WARM_UP_BATCH_SIZE)
+                        .list();
+                if (shops.isEmpty()) {
+                    break;
+                }
+                List<Shop> batch = shops;
+                // 上一批写完才提交下一批，内存中最多同时存在两批数据
+                pending.join();
+                pending = CompletableFuture.runAsync(() -> writeShops(batch), writer);
+                lastId = shops.get(shops.size() - 1).getId();
+                total += shops.size();
+            } while (shops.size() == WARM_UP_BATCH_SIZE);
+            pending.join();
+            log.info("店铺缓存预热完成，店铺数：{}", total);
+        } finally {
+            writer.shutdown();
+        }
+    }
+
+    /**
+     * 一批店铺的逻辑过期缓存和GEO坐标，各用一次pipeline写入
+     */
+    private void writeShops(Collection<Shop> shops) {
+        Map<String, Shop> values = new LinkedHashMap<>(shops.size() * 2);
+        Map<Long, Map<byte[], Point>> locations = new HashMap<>();
+        for (Shop shop : shops) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            if (shop.getX() != null && shop.getY() != null) {
+                locations.computeIfAbsent(shop.getTypeId(), typeId -> new HashMap<>())
+                        .put(shop.getId().toString().getBytes(StandardCharsets.UTF_8), new Point(shop.getX(), shop.getY()));
+            }
+        }
+        cacheClient.setManyWithLogicExpire(values, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<Long, Map<byte[], Point>> entry : locations.entrySet()) {
+                byte[] key = (SHOP_GEO_KEY + entry.getKey()).getBytes(StandardCharsets.UTF_8);
+                connection.geoCommands().geoAdd(key, entry.getValue());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 秒杀库存只在不存在时写入，不能覆盖redis中已经被扣减过的库存；同时刷新所属店铺的缓存
+     */
+    private void warmUpSeckillVouchers(List<SeckillVoucher> seckillVouchers) {
+        if (seckillVouchers.isEmpty()) {
+            return;
+        }
+        seckillStockClient.setStockIfAbsent(seckillVouchers);
+
+        List<Long> voucherIds = seckillVouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+        Set<Long> shopIds = voucherService.listByIds(voucherIds).stream()
+                .map(Voucher::getShopId)
+                .collect(Collectors.toSet());
+        if (!shopIds.isEmpty()) {
+            writeShops(shopService.listByIds(shopIds));
+        }
+        log.info("秒杀券预热完成，秒杀券数：{}，店铺数：{}", voucherIds.size(), shopIds.size());
+    }
+
+    /**
+     * 每分钟检查一次，预热接下来一段时间内开始的秒杀活动
+     */
+    @Scheduled(fixedRate = 60000, initialDelay = 60000)
+    public void warmUpPromotions() {
+        LocalDateTime from = promotionWarmedUntil;
+        if (from == null) {
+            // 启动预热还没有完成
+            return;
+        }
+        LocalDateTime to = LocalDateTime.now().plusMinutes(promotionLeadMinutes);
+        try {
+            List<SeckillVoucher> seckillVouchers = seckillVoucherService.query()
+                    .gt("begin_time", from)
+                    .le("begin_time", to)
+                    .inSql("voucher_id", "select id from tb_voucher where status = 1")
+                    .list();
+            warmUpSeckillVouchers(seckillVouchers);
+            promotionWarmedUntil = to;
+        } catch (Exception e) {
+            log.error("秒杀活动预热失败", e);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.hmdp.config;
+
+import com.hmdp.utils.BloomFilterClient;
+import com.hmdp.utils.LocalCache;
+import com.hmdp.utils.SoldOutRegistry;
+import com.hmdp.utils.UnlockNotifier;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * redis发布订阅的监听容器，节点间的广播消息都在这里注册
+ */
+@Configuration
+public class RedisListenerConfig {
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       LocalCache localCache,
+                                                                       BloomFilterClient bloomFilterClient,
+                                                                       SoldOutRegistry soldOutRegistry,
+                                                                       UnlockNotifier unlockNotifier) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 本地缓存失效通知
+        container.addMessageListener(localCache, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 布隆过滤器新增id通知
+        container.addMessageListener(bloomFilterClient, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        // 秒杀券售罄、补充库存通知
+        container.addMessageListener(soldOutRegistry, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        // 分布式锁释放通知
+        container.addMessageListener(unlockNotifier, new ChannelTopic(LOCK_UNLOCK_CHANNEL));
+        return container;
+    }
+}
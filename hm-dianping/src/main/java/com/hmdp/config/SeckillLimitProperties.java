@@ -0,0 +1,60 @@
+package com.hmdp.config;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 秒杀限流配置，hmdp.seckill.limit.defaults是所有秒杀券的默认值，
+ * hmdp.seckill.limit.vouchers.{voucherId}单独配置某个券，没有配置的项沿用默认值
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill.limit")
+public class SeckillLimitProperties {
+
+    private Limit defaults = new Limit(2000, 200, 5000, 20);
+
+    private Map<Long, Limit> vouchers = new HashMap<>();
+
+    /**
+     * 某个秒杀券的限流配置
+     */
+    public Limit of(Long voucherId) {
+        Limit limit = vouchers.get(voucherId);
+        if (limit == null) {
+            return defaults;
+        }
+        return new Limit(
+                limit.getLocalQps() != null ? limit.getLocalQps() : defaults.getLocalQps(),
+                limit.getLocalBurst() != null ? limit.getLocalBurst() : defaults.getLocalBurst(),
+                limit.getGlobalQps() != null ? limit.getGlobalQps() : defaults.getGlobalQps(),
+                limit.getLease() != null ? limit.getLease() : defaults.getLease());
+    }
+
+    /**
+     * 单独配置的券没有写的项为null，沿用默认值
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Limit {
+
+        // 单个节点每秒放行的请求数，小于等于0表示不限制
+        private Integer localQps;
+
+        // 单个节点令牌桶的容量，允许的突发请求数
+        private Integer localBurst;
+
+        // 所有节点每秒放行的请求数，小于等于0表示不限制
+        private Integer globalQps;
+
+        // 每次从redis申请的许可数，越大访问redis越少，但节点之间分配越不均匀
+        private Integer lease;
+    }
+}
@@ -0,0 +1,63 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * <p>
+ * 缓存失效事件，由tb_shop、tb_voucher上的触发器在同一个事务中写入
+ * </p>
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_cache_outbox")
+public class CacheOutbox implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 发生变更的表
+     */
+    private String tableName;
+
+    /**
+     * 发生变更的行的主键
+     */
+    private Long rowId;
+
+    /**
+     * 变更类型，I：新增；U：修改；D：删除
+     */
+    private String op;
+
+    /**
+     * 关联的商铺id
+     */
+    private Long shopId;
+
+    /**
+     * 变更前的商铺类型id，用于维护GEO
+     */
+    private Long oldTypeId;
+
+    /**
+     * 创建时间
+     */
+    private LocalDateTime createTime;
+
+
+}
@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
@@ -13,4 +17,8 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface SeckillVoucherMapper extends BaseMapper<SeckillVoucher> {
 
+    /**
+     * 按券id游标读取一批秒杀券的库存和订单数：voucher_id、stock、orders
+     */
+    List<Map<String, Object>> selectStockSnapshot(@Param("cursor") long cursor, @Param("limit") int limit);
 }
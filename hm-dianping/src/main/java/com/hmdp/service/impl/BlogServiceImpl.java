@@ -1,35 +1,38 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
 import com.hmdp.entity.Follow;
-import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterClient;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
-import org.springframework.context.annotation.Bean;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
-import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -50,6 +53,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private IFollowService followService;
 
+    @Resource
+    private BloomFilterClient bloomFilterClient;
+
+    @Resource
+    private CacheClient cacheClient;
+
 
     /**
      * 查询热度最高的博客
@@ -65,11 +74,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(blog -> {
-            this.queryBlogUser(blog);
-            this.isLikedBlog(blog);
-        });
+        // 批量查询用户和点赞状态
+        fillBlogs(records);
 
         return Result.ok(records);
     }
@@ -82,35 +88,18 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
      */
     @Override
     public Result queryBlogById(Long id) {
-        //
+        // 布隆过滤器判断不存在的博客，直接返回，不再访问数据库
+        if (!bloomFilterClient.mightContain(CACHE_BLOG_KEY, id)) {
+            return Result.fail("笔记不存在!");
+        }
         Blog blog = getById(id);
         if (blog == null) {
             return Result.fail("笔记不存在!");
         }
-        queryBlogUser(blog);
-
-        isLikedBlog(blog);
+        fillBlogs(Collections.singletonList(blog));
         return Result.ok(blog);
     }
 
-    /**
-     * 用户查询博客的同时判断该用户是否有给此博客点赞
-     *
-     * @param blog
-     */
-    private void isLikedBlog(Blog blog) {
-        // 1、获取登录用户
-        UserDTO user = UserHolder.getUser();
-        if (user == null) {      // 用户未登录的情况下无需判断是否点赞
-            return;
-        }
-        Long userId = user.getId();
-        // 2、判断是否已经点赞
-        String key = BLOG_LIKED_KEY + blog.getId();
-        Double score = stringRedisTemplate.opsForZSet().score(key, userId.toString());
-        blog.setIsLike(score != null);
-    }
-
     /**
      * 点赞博客
      *
@@ -134,6 +123,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 2.1.2 保存该用户id到redis的set集合
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().add(key, userId.toString(), System.currentTimeMillis());
+                // 点赞数变了，删除博客缓存
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         } else {
             // 2.2、 已点赞
@@ -142,6 +133,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             // 2.2.2 把用户id从redis的set集合中移除
             if (isSuccess) {
                 stringRedisTemplate.opsForZSet().remove(key, userId.toString());
+                cacheClient.delete(CACHE_BLOG_KEY + id);
             }
         }
 
@@ -158,19 +150,28 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         }
         // 2、解析出其中的用户id
         List<Long> ids = top5.stream().map(Long::valueOf).collect(Collectors.toList());
-        String idStr = StrUtil.join(",", ids);
-        // 3、根据用户id查询用户
-        List<UserDTO> userDTOS = userService.query()
-                .in("id", ids)
-                .last("order by field(id," + idStr + ")").list()
-                .stream()
-                .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
-                .collect(Collectors.toList());
+        // 3、根据用户id批量查询用户，结果顺序与ids一致
+        List<UserDTO> userDTOS = new ArrayList<>(userService.queryUsersByIds(ids).values());
 
         // 4、返回
         return Result.ok(userDTOS);
     }
 
+    /**
+     * 新增博客后同步写入布隆过滤器，否则新数据会被过滤器拦截
+     *
+     * @param blog
+     * @return
+     */
+    @Override
+    public boolean save(Blog blog) {
+        boolean isSuccess = super.save(blog);
+        if (isSuccess) {
+            bloomFilterClient.add(CACHE_BLOG_KEY, blog.getId());
+        }
+        return isSuccess;
+    }
+
     /**
      * 添加博客
      *
@@ -243,14 +244,12 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             }
         }
 
-        // 4、根据id查询blog
-        String idstr = StrUtil.join(",", ids);
-        List<Blog> blogs = query().in("id", ids).last("order by field(id," + idstr + ")").list();
+        // 4、根据id批量查询blog，走缓存，结果顺序与ids一致
+        List<Blog> blogs = new ArrayList<>(cacheClient.queryMany(CACHE_BLOG_KEY, ids, Blog.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Blog::getId, Function.identity())),
+                CACHE_BLOG_TTL, TimeUnit.MINUTES).values());
 
-        for (Blog blog : blogs) {
-            queryBlogUser(blog);
-            isLikedBlog(blog);
-        }
+        fillBlogs(blogs);
 
         // 5、封装并返回
         ScrollResult scrollResult = new ScrollResult();
@@ -261,14 +260,42 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     /**
-     * 手动添加blog中的额外字段
+     * 手动添加blog中的额外字段：作者信息和当前用户是否点赞
+     * 作者批量查询，点赞状态一次pipeline查询，不再每篇博客单独访问数据库和redis
      *
-     * @param blog
+     * @param blogs
      */
-    private void queryBlogUser(Blog blog) {
-        Long userId = blog.getUserId();
-        User user = userService.getById(userId);
-        blog.setName(user.getNickName());
-        blog.setIcon(user.getIcon());
+    private void fillBlogs(List<Blog> blogs) {
+        if (blogs.isEmpty()) {
+            return;
+        }
+        // 1、批量查询作者
+        List<Long> userIds = blogs.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUsersByIds(userIds);
+        for (Blog blog : blogs) {
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
+        }
+
+        // 2、获取登录用户，未登录的情况下无需判断是否点赞
+        UserDTO user = UserHolder.getUser();
+        if (user == null) {
+            return;
+        }
+        // 3、一次pipeline判断是否已经点赞
+        byte[] member = user.getId().toString().getBytes(StandardCharsets.UTF_8);
+        List<Object> scores = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Blog blog : blogs) {
+                byte[] key = (BLOG_LIKED_KEY + blog.getId()).getBytes(StandardCharsets.UTF_8);
+                connection.zSetCommands().zScore(key, member);
+            }
+            return null;
+        });
+        for (int i = 0; i < blogs.size(); i++) {
+            blogs.get(i).setIsLike(scores.get(i) != null);
+        }
     }
 }
@@ -11,6 +11,8 @@ import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.BloomFilterClient;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.ErrorMessageConstants;
 import com.hmdp.utils.RegexUtils;
 import com.hmdp.utils.SystemConstants;
@@ -25,10 +27,13 @@ import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.ErrorMessageConstants.LOGIN_ERROR;
 import static com.hmdp.utils.RedisConstants.*;
@@ -47,6 +52,12 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private BloomFilterClient bloomFilterClient;
+
+    @Resource
+    private CacheClient cacheClient;
+
     /**
      * 发送短信验证码校验用户登录
      *
@@ -80,6 +91,21 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
 
     }
 
+    /**
+     * 新增用户后同步写入布隆过滤器，否则新数据会被过滤器拦截
+     *
+     * @param user
+     * @return
+     */
+    @Override
+    public boolean save(User user) {
+        boolean isSuccess = super.save(user);
+        if (isSuccess) {
+            bloomFilterClient.add(CACHE_USER_KEY, user.getId());
+        }
+        return isSuccess;
+    }
+
     /**
      * 用户登录
      *
@@ -205,6 +231,21 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(count);
     }
 
+    /**
+     * 批量查询用户，走缓存
+     *
+     * @param ids 用户id
+     * @return 用户id -> 用户，顺序与传入的ids一致，不存在的用户不在结果中
+     */
+    @Override
+    public Map<Long, UserDTO> queryUsersByIds(Collection<Long> ids) {
+        return cacheClient.queryMany(CACHE_USER_KEY, ids, UserDTO.class,
+                missIds -> listByIds(missIds).stream()
+                        .map(user -> BeanUtil.copyProperties(user, UserDTO.class))
+                        .collect(Collectors.toMap(UserDTO::getId, Function.identity())),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+    }
+
     /**
      * 通过手机号创建用户信息
      * @param phone
@@ -1,34 +1,64 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.hmdp.dto.Result;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import lombok.extern.slf4j.Slf4j;
+import io.lettuce.core.LettuceFutures;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
+import io.lettuce.core.api.async.RedisStreamAsyncCommands;
+import io.lettuce.core.models.stream.ClaimedMessages;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.TimeGauge;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -36,6 +66,7 @@ import java.util.concurrent.Executors;
  * </p>
  *
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
@@ -46,49 +77,228 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private RedisIdWorker redisIdWorker;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private MeterRegistry meterRegistry;
 
-    // 设置lua脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillStockClient seckillStockClient;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
 
     /**
-     * 创建阻塞队列并指定大小
+     * 代理对象，消费线程中拿不到AopContext，注入自身的代理让事务生效
      */
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    @Lazy
+    @Resource
+    private IVoucherOrderService proxy;
+
+    // 消费者个数，每个消费者一个线程，在同一个消费者组中分摊消息
+    @Value("${hmdp.order.consumers:4}")
+    private int consumers;
+
+    // 每次从stream中读取的消息数，也是一个事务中写入的订单数
+    @Value("${hmdp.order.batch-size:50}")
+    private int batchSize;
+
+    // 没有消息时阻塞等待的时长
+    @Value("${hmdp.order.block-ms:2000}")
+    private long blockMillis;
+
+    // 消息在pending-list中闲置多久才被认领重试，要大于一批订单的正常处理时间
+    @Value("${hmdp.order.recovery.min-idle-ms:30000}")
+    private long recoveryMinIdleMillis;
+
+    // 最多投递次数，超过后转入死信队列
+    @Value("${hmdp.order.recovery.max-attempts:5}")
+    private long recoveryMaxAttempts;
+
+    // 实例标识，消费者名称为 实例标识/c1，默认取 主机名:端口，重启后不变，可以继续处理自己的pending消息
+    @Value("${hmdp.order.instance-id:}")
+    private String instanceId;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    // 心跳间隔，心跳key的过期时间是它的3倍，过期后该实例的消费者会被其他实例注销
+    @Value("${hmdp.order.heartbeat-ms:10000}")
+    private long heartbeatMillis;
 
     /**
      * 创建线程池
      */
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    private ExecutorService seckillOrderExecutor;
+
+    private volatile boolean running = true;
+
+    // pending-list中的消息数和最早一条消息的等待时长，定时刷新后由指标读取
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong pendingOldestAgeMillis = new AtomicLong();
+
+    private Counter deadLetterCounter;
+
+    // 上次认领到的位置，下次从这里继续扫描pending-list
+    private volatile String recoveryCursor = "0-0";
 
     @PostConstruct  // 在该类初始化的时候执行
     private void init(){
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        Gauge.builder("seckill.order.pending", pendingCount, AtomicLong::get)
+                .description("stream.orders中已投递未ack的消息数")
+                .register(meterRegistry);
+        TimeGauge.builder("seckill.order.pending.oldest.age", pendingOldestAgeMillis, TimeUnit.MILLISECONDS, AtomicLong::get)
+                .description("pending-list中最早一条消息的等待时长")
+                .register(meterRegistry);
+        deadLetterCounter = meterRegistry.counter("seckill.order.dead.letter");
+
+        // 1、确定实例标识，创建消费者组，写入心跳
+        if (StrUtil.isBlank(instanceId)) {
+            instanceId = NetUtil.getLocalHostName() + ":" + serverPort;
+        }
+        createGroupIfAbsent();
+        heartbeat();
+
+        // 2、启动消费者
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumers,
+                ThreadFactoryBuilder.create().setNamePrefix("seckill-order-").build());
+        for (int i = 1; i <= consumers; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerName("c" + i)));
+        }
+        log.info("订单消费者已启动，实例：{}，消费者个数：{}", instanceId, consumers);
     }
 
     /**
-     * 子线程：执行创建订单任务
+     * 停止消费者，等待正在处理的批次完成后注销没有pending消息的消费者
+     * 还有pending消息的消费者保留下来，由其他实例在心跳过期后接管
+     */
+    @PreDestroy
+    private void destroy() throws InterruptedException {
+        running = false;
+        seckillOrderExecutor.shutdown();
+        seckillOrderExecutor.awaitTermination(blockMillis + 5000, TimeUnit.MILLISECONDS);
+        try {
+            stringRedisTemplate.delete(SECKILL_ORDER_CONSUMER_KEY + instanceId);
+            for (StreamInfo.XInfoConsumer consumer : stringRedisTemplate.opsForStream()
+                    .consumers(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP).stream().collect(Collectors.toList())) {
+                if (instanceId.equals(instanceOf(consumer.consumerName())) && consumer.pendingCount() == 0) {
+                    stringRedisTemplate.opsForStream().deleteConsumer(SECKILL_ORDER_STREAM_KEY,
+                            Consumer.from(SECKILL_ORDER_GROUP, consumer.consumerName()));
+                }
+            }
+        } catch (Exception e) {
+            log.warn("注销订单消费者失败，实例：{}", instanceId, e);
+        }
+    }
+
+    /**
+     * XGROUP CREATE stream.orders g1 0 MKSTREAM，组已经存在时redis返回BUSYGROUP错误，忽略即可
+     */
+    private void createGroupIfAbsent() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(bytes(SECKILL_ORDER_STREAM_KEY), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+            log.info("创建消费者组：{} {}", SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP);
+        } catch (Exception e) {
+            if (!String.valueOf(NestedExceptionUtils.getMostSpecificCause(e).getMessage()).contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private String consumerName(String name) {
+        return instanceId + "/" + name;
+    }
+
+    /**
+     * 从消费者名称中解析实例标识，旧版本的消费者（如c1）没有实例标识，返回null
+     */
+    private static String instanceOf(String consumerName) {
+        int index = consumerName.lastIndexOf('/');
+        return index < 0 ? null : consumerName.substring(0, index);
+    }
+
+    /**
+     * 定时续期心跳，并注销心跳已经过期的实例留下的消费者
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.heartbeat-ms:10000}", initialDelayString = "${hmdp.order.heartbeat-ms:10000}")
+    public void heartbeatAndReap() {
+        try {
+            heartbeat();
+            reapDeadConsumers();
+        } catch (Exception e) {
+            log.error("订单消费者心跳失败", e);
+        }
+    }
+
+    private void heartbeat() {
+        stringRedisTemplate.opsForValue().set(SECKILL_ORDER_CONSUMER_KEY + instanceId,
+                String.valueOf(System.currentTimeMillis()), heartbeatMillis * 3, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 心跳过期的实例的消费者：先把它的pending消息XCLAIM给本实例的recovery消费者，再XGROUP DELCONSUMER
+     * 直接删除消费者会把它的pending消息一起删掉，所以一定要先转移
+     */
+    private void reapDeadConsumers() {
+        for (StreamInfo.XInfoConsumer consumer : stringRedisTemplate.opsForStream()
+                .consumers(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP).stream().collect(Collectors.toList())) {
+            String name = consumer.consumerName();
+            String instance = instanceOf(name);
+            if (instanceId.equals(instance)) {
+                continue;
+            }
+            if (instance == null) {
+                // 没有实例标识的消费者无法判断存活，闲置足够久才注销
+                if (consumer.idleTimeMs() < heartbeatMillis * 3) {
+                    continue;
+                }
+            } else if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_ORDER_CONSUMER_KEY + instance))) {
+                continue;
+            }
+
+            // 1、转移pending消息，闲置时间保持为认领阈值，下一轮recoverPendingOrders就会重试
+            PendingMessages pending;
+            while (!(pending = stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM_KEY,
+                    Consumer.from(SECKILL_ORDER_GROUP, name), Range.unbounded(), batchSize)).isEmpty()) {
+                RecordId[] ids = pending.stream().map(PendingMessage::getId).toArray(RecordId[]::new);
+                stringRedisTemplate.execute((RedisCallback<List<RecordId>>) connection -> connection.streamCommands()
+                        .xClaimJustId(bytes(SECKILL_ORDER_STREAM_KEY), SECKILL_ORDER_GROUP,
+                                consumerName(SECKILL_ORDER_RECOVERY_CONSUMER),
+                                RedisStreamCommands.XClaimOptions.minIdleMs(0).ids(ids)
+                                        .idle(Duration.ofMillis(recoveryMinIdleMillis))));
+            }
+
+            // 2、注销消费者
+            stringRedisTemplate.opsForStream().deleteConsumer(SECKILL_ORDER_STREAM_KEY, Consumer.from(SECKILL_ORDER_GROUP, name));
+            log.warn("注销失效的订单消费者：{}，转移pending消息数：{}", name, consumer.pendingCount());
+        }
+    }
+
+    /**
+     * 子线程：批量执行创建订单任务
      */
     private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
+
+        private final String consumerName;
+
+        private VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while(true){
+            // 没有ack的消息留在pending-list中，由recoverPendingOrders统一认领重试
+            while(running){
                 try {
-                    // 1、获取队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders >
+                    // 1、获取队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 50 BLOCK 2000 STREAMS stream.orders >
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMillis)),
+                            StreamOffset.create(SECKILL_ORDER_STREAM_KEY, ReadOffset.lastConsumed())
                     );
 
                     // 2、判断消息是否获得成功
@@ -97,93 +307,158 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         continue;
                     }
 
-                    // 3、解析消息中的订单信息
-                    MapRecord<String,Object,Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4、如果获得成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    // 5、ack确认 sack stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+                    // 3、如果获得成功，整批下单并ack
+                    handleVoucherOrders(list);
 
                 } catch (Exception e) {
-                    log.error("处理pending-list异常",e);
+                    log.error("订单处理异常",e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                        Thread.currentThread().interrupt();
+                        return;
                     }
                 }
             }
         }
+    }
 
-        /**
-         * 处理在ack确认前发生异常进入pendingList的消息
-         */
-        private void handlePendingList() {
-            while(true){
-                try {
-                    // 1、获取队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS stream.orders 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-
-                    // 2、判断消息是否获得成功
-                    if(list == null || list.isEmpty()){
-                        // 如果获取失败，说明pendinglist没有异常消息，结束循环
-                        break;
-                    }
+    /**
+     * 定时认领pending-list中闲置的消息并逐条重试，不区分是哪个消费者留下的（包括已经不存在的消费者）
+     * XAUTOCLAIM认领时会重置闲置时间，多个节点同时执行也不会重复认领同一条消息
+     */
+    @Scheduled(fixedDelayString = "${hmdp.order.recovery.interval-ms:5000}", initialDelay = 5000)
+    public void recoverPendingOrders() {
+        try {
+            // 1、认领闲置的消息 XAUTOCLAIM stream.orders g1 recovery 30000 0-0 COUNT 50
+            ClaimedMessages<byte[], byte[]> claimed = autoClaim(recoveryCursor);
+            recoveryCursor = claimed.getId();
+            List<StreamMessage<byte[], byte[]>> messages = claimed.getMessages();
+            if (!messages.isEmpty()) {
+                // 2、查询每条消息的投递次数，认领本身也算一次投递
+                // 认领后消息都在recovery消费者名下，只查它的pending-list，其他消费者同一区间内的消息不会占用条数，
+                // 它名下之前重试失败的消息也可能落在这个区间，所以不限制条数
+                Map<String, Long> deliveries = new HashMap<>(messages.size() * 2);
+                stringRedisTemplate.opsForStream().pending(SECKILL_ORDER_STREAM_KEY,
+                                Consumer.from(SECKILL_ORDER_GROUP, consumerName(SECKILL_ORDER_RECOVERY_CONSUMER)),
+                                Range.closed(messages.get(0).getId(), messages.get(messages.size() - 1).getId()), Long.MAX_VALUE)
+                        .forEach(pending -> deliveries.put(pending.getIdAsString(), pending.getTotalDeliveryCount()));
+
+                // 3、逐条重试，一条坏消息不会拖累其他消息
+                for (StreamMessage<byte[], byte[]> message : messages) {
+                    retryPendingOrder(message, deliveries.getOrDefault(message.getId(), 1L));
+                }
+            }
+        } catch (Exception e) {
+            log.error("认领pending-list消息失败", e);
+        } finally {
+            refreshPendingMetrics();
+        }
+    }
 
-                    // 3、解析消息中的订单信息
-                    MapRecord<String,Object,Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    // 4、如果获得成功，可以下单
-                    handleVoucherOrder(voucherOrder);
-                    // 5、ack确认 sack stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
+    private ClaimedMessages<byte[], byte[]> autoClaim(String cursor) {
+        return stringRedisTemplate.execute((RedisCallback<ClaimedMessages<byte[], byte[]>>) connection -> {
+            // spring-data-redis没有封装XAUTOCLAIM，直接使用lettuce的命令
+            @SuppressWarnings("unchecked")
+            RedisStreamAsyncCommands<byte[], byte[]> commands = (RedisStreamAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            XAutoClaimArgs<byte[]> args = XAutoClaimArgs.Builder.<byte[]>xautoclaim(
+                            io.lettuce.core.Consumer.from(bytes(SECKILL_ORDER_GROUP), bytes(consumerName(SECKILL_ORDER_RECOVERY_CONSUMER))),
+                            recoveryMinIdleMillis, cursor)
+                    .count(batchSize);
+            return LettuceFutures.awaitOrCancel(commands.xautoclaim(bytes(SECKILL_ORDER_STREAM_KEY), args), 10, TimeUnit.SECONDS);
+        });
+    }
 
-                } catch (Exception e) {
-                    log.error("订单处理异常",e);
-                    handlePendingList();
-                }
+    private void retryPendingOrder(StreamMessage<byte[], byte[]> message, long deliveryCount) {
+        RecordId recordId = RecordId.of(message.getId());
+        Map<byte[], byte[]> body = message.getBody();
+        if (body == null || body.isEmpty()) {
+            // 消息已经被删除，只剩pending-list中的记录
+            stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP, recordId);
+            return;
+        }
+        Map<Object, Object> values = new HashMap<>(body.size() * 2);
+        body.forEach((field, value) -> values.put(string(field), string(value)));
+        MapRecord<String, Object, Object> record = StreamRecords.newRecord()
+                .in(SECKILL_ORDER_STREAM_KEY)
+                .withId(recordId)
+                .ofMap(values);
+        try {
+            handleVoucherOrders(Collections.singletonList(record));
+        } catch (Exception e) {
+            if (deliveryCount < recoveryMaxAttempts) {
+                log.warn("订单重试失败，消息：{}，投递次数：{}", recordId, deliveryCount, e);
+                return;
             }
+            deadLetter(record, deliveryCount, e);
         }
     }
 
     /**
-     * 由子线程来调用创建订单的方法
-     * @param voucherOrder
+     * 超过最多投递次数的消息连同失败原因写入死信队列，再从pending-list中移除
      */
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        Long userId = voucherOrder.getUserId();
-        // 1、创建锁对象
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 2、获取锁
-        boolean isLock = lock.tryLock();        // 默认等待时长是30s
-
-        // 3、判断获取状态
-        if (!isLock){
-            log.error("不允许重复下单！");
-            return;
-        }
+    private void deadLetter(MapRecord<String, Object, Object> record, long deliveryCount, Exception e) {
+        Map<String, String> values = new HashMap<>();
+        record.getValue().forEach((field, value) -> values.put(field.toString(), value.toString()));
+        values.put("sourceId", record.getId().getValue());
+        values.put("deliveryCount", String.valueOf(deliveryCount));
+        values.put("reason", String.valueOf(e));
+        // XADD stream.orders.dlq * ...
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(SECKILL_ORDER_DLQ_KEY).ofMap(values));
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP, record.getId());
+        deadLetterCounter.increment();
+        log.error("订单转入死信队列，消息：{}，投递次数：{}", record.getId(), deliveryCount, e);
+    }
 
-        // 4、处理业务
-        // 获取事务代理对象
+    /**
+     * 刷新pending-list的指标：消息数，以及最早一条消息id中的时间戳到现在的时长
+     */
+    private void refreshPendingMetrics() {
         try {
-             proxy.createVoucherOrder(voucherOrder);
-        } finally {
-            lock.unlock();
+            PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP);
+            long total = summary == null ? 0 : summary.getTotalPendingMessages();
+            pendingCount.set(total);
+            if (total == 0) {
+                pendingOldestAgeMillis.set(0);
+                return;
+            }
+            String oldestId = summary.minMessageId();
+            long oldestMillis = Long.parseLong(oldestId.substring(0, oldestId.indexOf('-')));
+            pendingOldestAgeMillis.set(Math.max(0, System.currentTimeMillis() - oldestMillis));
+        } catch (Exception e) {
+            log.warn("查询pending-list失败", e);
         }
     }
 
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] value) {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
     /**
-     * 代理对象
+     * 由子线程来调用创建订单的方法：一批消息一个事务，提交后一次ack
+     * @param records
      */
-    private IVoucherOrderService proxy;
+    private void handleVoucherOrders(List<MapRecord<String, Object, Object>> records) {
+        // 1、解析消息中的订单信息
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        RecordId[] recordIds = new RecordId[records.size()];
+        for (int i = 0; i < records.size(); i++) {
+            MapRecord<String, Object, Object> record = records.get(i);
+            voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            recordIds[i] = record.getId();
+        }
+
+        // 2、处理业务，一人一单由数据库唯一索引保证，不需要再加用户锁
+        proxy.createVoucherOrders(voucherOrders);
 
+        // 3、ack确认 XACK stream.orders g1 id1 id2 ...
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM_KEY, SECKILL_ORDER_GROUP, recordIds);
+    }
 
     /**
      * 秒杀优惠券抢购
@@ -195,37 +470,39 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     public Result seckillVoucher(Long voucherId) {
         // 版本二：redis异步秒杀优化
 
+        // 已经售罄的券直接在本地拒绝，不访问redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        // 限流，被拒绝时data为建议的重试等待毫秒数
+        long retryAfter = seckillRateLimiter.tryAcquire(voucherId);
+        if (retryAfter > 0) {
+            return Result.fail("系统繁忙，请稍后重试", retryAfter);
+        }
         // 获取用户
         Long userId = UserHolder.getUser().getId();
         // 获取订单id
         long seckillOrderId = redisIdWorker.nextId("order");
-        // 1、执行lua
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),        // 空集合
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(seckillOrderId)
-        );
+        // 1、执行lua，判断购买资格、扣减库存并发送订单消息
+        int r = seckillStockClient.seckill(voucherId, userId, seckillOrderId);
 
         // 判断是否具备购买资格
-        int r = result.intValue();  // long转成int
-        if (r != 0) {
-            return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
+        if (r == SeckillStockClient.SECKILL_SOLD_OUT) {
+            // 标记售罄并通知所有节点
+            soldOutRegistry.markSoldOut(voucherId);
+        }
+        switch (r) {
+            case SeckillStockClient.SECKILL_OK:
+                break;
+            case SeckillStockClient.SECKILL_SOLD_OUT:
+                return Result.fail("库存不足");
+            case SeckillStockClient.SECKILL_NOT_STARTED:
+                return Result.fail("秒杀尚未开始");
+            case SeckillStockClient.SECKILL_ENDED:
+                return Result.fail("秒杀已经结束");
+            default:
+                return Result.fail("不能重复下单");
         }
-
-        /*
-        VoucherOrder voucherOrder = new VoucherOrder();
-        voucherOrder.setId(seckillOrderId);     // 订单id
-        voucherOrder.setVoucherId(voucherId);   // 券id
-        voucherOrder.setUserId(userId);   // 用户id
-
-        // 加入阻塞队列
-        orderTasks.add(voucherOrder);
-        */
-
-        // 获取代理对象
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
 
         // 返回订单id
         return Result.ok(seckillOrderId);
@@ -239,35 +516,86 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Override
     @Transactional      // 多表操作添加事务
     public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 不在方法上加锁，这样锁的范围太大
-        // 4、实现一人一单，如果用户已经买了，就不在保存该订单
-        Long userId = voucherOrder.getUserId();
-        Long voucherId = voucherOrder.getVoucherId();
-
-        Integer count = query().eq("voucher_id", voucherId).eq("user_id", userId).count();
-        if (count > 0) {
-            log.error("不可重复下单");
-            return;
-        }
+        createVoucherOrders(Collections.singletonList(voucherOrder));
+    }
 
+    /**
+     * 批量生成订单：整批一个事务，订单用一条insert ignore保存，每个券只扣一次库存
+     * 一人一单由(user_id, voucher_id)唯一索引保证，重复的订单在insert时被忽略；
+     * 订单id沿用消息中的id，和返回给用户的保持一致，消息重复投递时按主键识别出已经保存过的订单
+     *
+     * @param voucherOrders
+     */
+    @Override
+    @Transactional
+    public void createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 1、批内去重，同一用户同一个券只保留第一条
+        Map<String, VoucherOrder> orders = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orders.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
 
-        // 5、以上条件满足，扣减库存，创建秒杀订单
-        boolean success = iSeckillVoucherService.update()
-                .setSql("stock = stock -1")
-                .eq("voucher_id", voucherId)
-                .gt("stock", 0)      // 使用乐观锁的cas方法（compare and swap)实现超卖，只有数据库中的库存大于0才能创建成功
-                .update();// 扣减库存，更新数据库
+        // 2、按主键过滤掉之前投递时已经保存过的订单，它们的库存也已经扣过了
+        Set<Long> saved = listObjs(new QueryWrapper<VoucherOrder>().select("id")
+                .in("id", orders.values().stream().map(VoucherOrder::getId).collect(Collectors.toList())),
+                id -> Long.valueOf(id.toString()))
+                .stream().collect(Collectors.toSet());
+        List<VoucherOrder> candidates = orders.values().stream()
+                .filter(order -> !saved.contains(order.getId()))
+                .collect(Collectors.toList());
+        if (candidates.isEmpty()) {
+            return;
+        }
 
-        if (!success) {
-            log.error("该券已售罄");
-            return ;
+        // 3、insert ignore，全部写入时不需要再查询；否则按主键查出实际写入的订单，其余的是重复下单
+        List<VoucherOrder> inserted = candidates;
+        int rows = getBaseMapper().insertIgnoreBatch(candidates);
+        if (rows < candidates.size()) {
+            Set<Long> insertedIds = listObjs(new QueryWrapper<VoucherOrder>().select("id")
+                    .in("id", candidates.stream().map(VoucherOrder::getId).collect(Collectors.toList())),
+                    id -> Long.valueOf(id.toString()))
+                    .stream().collect(Collectors.toSet());
+            inserted = candidates.stream().filter(order -> insertedIds.contains(order.getId())).collect(Collectors.toList());
+            log.error("不可重复下单，忽略订单数：{}", candidates.size() - inserted.size());
         }
 
-        long seckillOrderId = redisIdWorker.nextId("order");        // 给秒杀券生成全局唯一id
-        voucherOrder.setId(seckillOrderId);     // 订单id
-        voucherOrder.setVoucherId(voucherId);   // 券id
-        voucherOrder.setUserId(userId);   // 用户id
+        // 4、按券汇总扣减库存 stock = stock - k，库存不足时删除多出来的订单
+        // 按券id从小到大扣减，并发的消费者总是按相同的顺序锁tb_seckill_voucher的行，不会互相死锁
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = inserted.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.toList()));
+        List<Long> rejected = new ArrayList<>();
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            List<VoucherOrder> list = entry.getValue();
+            int count = deductStock(entry.getKey(), list.size());
+            if (count < list.size()) {
+                // redis中已经校验过库存，走到这里说明数据库和redis的库存不一致
+                log.error("该券已售罄，券：{}，丢弃订单数：{}", entry.getKey(), list.size() - count);
+                list.subList(count, list.size()).forEach(order -> rejected.add(order.getId()));
+            }
+        }
+        if (!rejected.isEmpty()) {
+            removeByIds(rejected);
+        }
+    }
 
-        save(voucherOrder);     // 秒杀券订单保存至数据库
+    /**
+     * 扣减库存，库存不够时只扣剩余的部分
+     *
+     * @return 实际扣减的数量
+     */
+    private int deductStock(Long voucherId, int count) {
+        while (count > 0) {
+            boolean success = iSeckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)      // 乐观锁，只有库存足够时才扣减
+                    .update();
+            if (success) {
+                return count;
+            }
+            SeckillVoucher seckillVoucher = iSeckillVoucherService.getById(voucherId);
+            count = seckillVoucher == null ? 0 : Math.min(seckillVoucher.getStock(), count);
+        }
+        return 0;
     }
 }
@@ -1,5 +1,7 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
@@ -7,14 +9,22 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.SoldOutRegistry;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -33,14 +43,52 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
-        // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+        // 1、先查缓存，只缓存tb_voucher的字段，优惠券变更时由CacheOutboxRelay删除
+        String key = CACHE_SHOP_VOUCHER_KEY + shopId;
+        String json = stringRedisTemplate.opsForValue().get(key);
+        List<Voucher> vouchers;
+        if (StrUtil.isNotBlank(json)) {
+            vouchers = JSONUtil.toList(json, Voucher.class);
+        } else {
+            // 2、查询优惠券信息
+            vouchers = getBaseMapper().queryVoucherOfShop(shopId);
+            // 3、写入缓存
+            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(vouchers), CACHE_SHOP_VOUCHER_TTL, TimeUnit.MINUTES);
+        }
+        // 4、秒杀券的库存和时间每次都查tb_seckill_voucher，下单、补库存都会修改它们，不放进缓存
+        fillSeckillInfo(vouchers);
         // 返回结果
         return Result.ok(vouchers);
     }
 
+    /**
+     * 按主键批量查询秒杀信息，填入库存和秒杀时间，普通券没有对应的行，保持为空
+     */
+    private void fillSeckillInfo(List<Voucher> vouchers) {
+        if (vouchers.isEmpty()) {
+            return;
+        }
+        List<Long> ids = vouchers.stream().map(Voucher::getId).collect(Collectors.toList());
+        Map<Long, SeckillVoucher> seckillVouchers = seckillVoucherService.listByIds(ids).stream()
+                .collect(Collectors.toMap(SeckillVoucher::getVoucherId, Function.identity()));
+        for (Voucher voucher : vouchers) {
+            SeckillVoucher seckillVoucher = seckillVouchers.get(voucher.getId());
+            if (seckillVoucher != null) {
+                voucher.setStock(seckillVoucher.getStock());
+                voucher.setBeginTime(seckillVoucher.getBeginTime());
+                voucher.setEndTime(seckillVoucher.getEndTime());
+            }
+        }
+    }
+
     /**
      * 添加秒杀优惠券
      * @param voucher
@@ -58,7 +106,37 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        // 将优惠券添加到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        // 将优惠券库存和秒杀时间添加到redis中，开启分片时拆分到各个分片
+        seckillStockClient.setStock(seckillVoucher);
+    }
+
+    /**
+     * 补充秒杀券库存：数据库和redis同时增加，并清除所有节点的售罄标记
+     * @param voucherId 秒杀券id
+     * @param count 增加的库存
+     */
+    @Override
+    @Transactional
+    public Result replenishSeckillStock(Long voucherId, Integer count) {
+        if (count == null || count <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        // 1、更新数据库库存
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        // 2、事务提交后增加redis库存，再清除售罄标记
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                seckillStockClient.addStock(voucherId, count);
+                soldOutRegistry.reset(voucherId);
+            }
+        });
+        return Result.ok();
     }
 }
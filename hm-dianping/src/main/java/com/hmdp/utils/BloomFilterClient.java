@@ -0,0 +1,161 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY;
+
+/**
+ * 防止缓存穿透的布隆过滤器，按缓存key前缀划分，元素是数据库id
+ * 判断只查本地过滤器，不存在的id不产生任何网络请求；本地过滤器靠两种方式和redis保持一致：
+ * 1、新增id时写redis并广播，其他节点收到后写入本地；
+ * 2、定时读取redis中的位图合并到本地，补上丢失的广播
+ */
+@Slf4j
+@Component
+public class BloomFilterClient implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // key前缀 -> 本地过滤器
+    private final Map<String, IdBloomFilter> filters = new ConcurrentHashMap<>();
+
+    // 已经完成全量加载的前缀，加载完成前不拦截任何请求
+    private final Set<String> ready = ConcurrentHashMap.newKeySet();
+
+    public BloomFilterClient(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 为某个key前缀创建布隆过滤器，要在开始接收请求之前调用，之前新增的id会丢失
+     *
+     * @param keyPrefix          缓存key前缀
+     * @param expectedInsertions 预计元素个数
+     * @param fpp                可接受的误判率
+     */
+    public void register(String keyPrefix, long expectedInsertions, double fpp) {
+        filters.put(keyPrefix, new IdBloomFilter(expectedInsertions, fpp));
+    }
+
+    /**
+     * 全量加载时写入一批id，只写本地
+     */
+    public void load(String keyPrefix, Collection<Long> ids) {
+        IdBloomFilter filter = filters.get(keyPrefix);
+        for (Long id : ids) {
+            filter.put(id);
+        }
+    }
+
+    /**
+     * 全量加载完成，把本地位图合并到redis（BITOP OR，不会覆盖其他节点新增的id），之后开始拦截
+     */
+    public void finishLoad(String keyPrefix) {
+        byte[] bitmap = filters.get(keyPrefix).toRedisBitmap();
+        byte[] key = redisKey(keyPrefix);
+        byte[] tmpKey = redisKey(keyPrefix + ":tmp:" + System.nanoTime());
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.stringCommands().set(tmpKey, bitmap);
+            connection.stringCommands().bitOp(RedisStringCommands.BitOperation.OR, key, key, tmpKey);
+            connection.keyCommands().del(tmpKey);
+            return null;
+        });
+        ready.add(keyPrefix);
+    }
+
+    /**
+     * 新增数据后调用，写本地和redis，并通知其他节点写入本地
+     */
+    public void add(String keyPrefix, Long id) {
+        IdBloomFilter filter = filters.get(keyPrefix);
+        if (filter == null || id == null) {
+            return;
+        }
+        filter.put(id);
+        byte[] key = redisKey(keyPrefix);
+        byte[] channel = BLOOM_ADD_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        byte[] message = (keyPrefix + id).getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : filter.offsets(id)) {
+                connection.stringCommands().setBit(key, offset, true);
+            }
+            connection.publish(channel, message);
+            return null;
+        });
+    }
+
+    /**
+     * 收到其他节点（包括自己）新增id的通知，消息格式：key前缀 + id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (Map.Entry<String, IdBloomFilter> entry : filters.entrySet()) {
+            String keyPrefix = entry.getKey();
+            if (body.startsWith(keyPrefix)) {
+                try {
+                    entry.getValue().put(Long.parseLong(body.substring(keyPrefix.length())));
+                    return;
+                } catch (NumberFormatException ignored) {
+                    // 前缀相同但不是这个过滤器的消息，继续匹配
+                }
+            }
+        }
+    }
+
+    /**
+     * 定时把redis中的位图合并到本地，补上节点重启、网络抖动期间丢失的广播
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.resync-ms:60000}", initialDelayString = "${hmdp.bloom.resync-ms:60000}")
+    public void resync() {
+        for (String keyPrefix : ready) {
+            try {
+                byte[] key = redisKey(keyPrefix);
+                byte[] bitmap = stringRedisTemplate.execute(
+                        (RedisCallback<byte[]>) connection -> connection.stringCommands().get(key));
+                if (bitmap != null) {
+                    filters.get(keyPrefix).mergeRedisBitmap(bitmap);
+                }
+            } catch (Exception e) {
+                log.warn("布隆过滤器同步失败，前缀：{}", keyPrefix, e);
+            }
+        }
+    }
+
+    /**
+     * 判断id是否可能存在，返回false时一定不存在，可以直接返回空结果
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        IdBloomFilter filter = filters.get(keyPrefix);
+        if (filter == null || !ready.contains(keyPrefix) || id == null) {
+            return true;
+        }
+        long value;
+        try {
+            value = id instanceof Number ? ((Number) id).longValue() : Long.parseLong(id.toString());
+        } catch (NumberFormatException e) {
+            // 过滤器里都是数字id，非数字的id一定不存在
+            return false;
+        }
+        // 只查本地，其他节点新增的id由广播和定时同步写入
+        return filter.mightContain(value);
+    }
+
+    private static byte[] redisKey(String keyPrefix) {
+        return (BLOOM_KEY + keyPrefix).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,18 +1,42 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.lang.TypeReference;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.hmdp.utils.codec.CacheCodec;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -25,16 +49,84 @@ public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    // 自定义线程池
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private final LocalCache localCache;
+
+    private final SingleFlight singleFlight;
+
+    private final CacheCodec cacheCodec;
+
+    private final BloomFilterClient bloomFilterClient;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    private final LockClient lockClient;
+
+    // 缓存重建线程池，队列有界，满了之后放弃本次重建，由下一次访问重新触发
+    private final ExecutorService rebuildExecutor;
+
+    // 因为队列已满被放弃的重建次数
+    private final Counter rebuildRejected;
+
+    // 缓存未命中时等待其他节点加载完成的最长时间
+    private final long loadLockWaitMillis;
+
+    // 等锁超时、直接查库的次数
+    private final Counter loadLockTimeout;
+
+    // 提前刷新的激进程度，大于1更早刷新，小于1更晚刷新
+    private static final double XFETCH_BETA = 1.0;
+
+    // key前缀 -> 平均重建耗时（纳秒），按主键查库只要零点几毫秒，所以用纳秒计时、用double保存平均值
+    private final Map<String, Double> rebuildCosts = new ConcurrentHashMap<>();
+
+    // key前缀 -> 重建耗时的直方图：cache.rebuild.time{prefix}
+    private final Map<String, Timer> rebuildTimers = new ConcurrentHashMap<>();
+
+    private final MeterRegistry meterRegistry;
 
     /**
      * 需要定义构造方法来注入StringRedisTemplate
      *
      * @param stringRedisTemplate
+     * @param localCache
+     * @param singleFlight
+     * @param cacheCodec
+     * @param bloomFilterClient
+     * @param hotKeyDetector
+     * @param lockClient
+     * @param meterRegistry
+     * @param rebuildThreads       重建线程数
+     * @param rebuildQueueCapacity 重建任务队列长度
+     * @param loadLockWaitMillis   缓存未命中时等待其他节点加载完成的最长毫秒数
      */
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate, LocalCache localCache, SingleFlight singleFlight,
+                       CacheCodec cacheCodec, BloomFilterClient bloomFilterClient, HotKeyDetector hotKeyDetector,
+                       LockClient lockClient, MeterRegistry meterRegistry,
+                       @Value("${hmdp.cache.rebuild.threads:10}") int rebuildThreads,
+                       @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int rebuildQueueCapacity,
+                       @Value("${hmdp.cache.load.lock-wait-ms:500}") long loadLockWaitMillis) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.localCache = localCache;
+        this.singleFlight = singleFlight;
+        this.cacheCodec = cacheCodec;
+        this.bloomFilterClient = bloomFilterClient;
+        this.hotKeyDetector = hotKeyDetector;
+        this.lockClient = lockClient;
+        this.meterRegistry = meterRegistry;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(rebuildThreads, rebuildThreads,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(rebuildQueueCapacity),
+                ThreadFactoryBuilder.create().setNamePrefix("cache-rebuild-").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        // 队列长度、活跃线程数、完成任务数等指标
+        this.rebuildExecutor = ExecutorServiceMetrics.monitor(meterRegistry, executor, "cache.rebuild");
+        this.rebuildRejected = meterRegistry.counter("cache.rebuild.rejected");
+        this.loadLockWaitMillis = loadLockWaitMillis;
+        this.loadLockTimeout = meterRegistry.counter("cache.load.lock.timeout");
+    }
+
+    @PreDestroy
+    public void destroy() {
+        rebuildExecutor.shutdown();
     }
 
     /**
@@ -46,137 +138,570 @@ public class CacheClient {
      * @param timeUnit
      */
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        setBytes(key, cacheCodec.encode(value), time, timeUnit);
     }
 
     public <T> void setWithLogicExpire(String key, T value, Long time, TimeUnit timeUnit) {
         RedisData<T> redisData = new RedisData<>();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        setBytes(key, cacheCodec.encodeLogical(redisData), null, null);
+    }
+
+    /**
+     * 批量写入逻辑过期的缓存，一次pipeline完成
+     * 过期时间额外加上最多10%的随机值，避免同一批写入的key在同一时刻过期、同时触发重建
+     *
+     * @param values   完整的key -> 数据
+     * @param time
+     * @param timeUnit
+     */
+    public <T> void setManyWithLogicExpire(Map<String, T> values, Long time, TimeUnit timeUnit) {
+        if (values.isEmpty()) {
+            return;
+        }
+        long seconds = timeUnit.toSeconds(time);
+        LocalDateTime now = LocalDateTime.now();
+        Map<byte[], byte[]> writes = new LinkedHashMap<>(values.size() * 2);
+        for (Map.Entry<String, T> entry : values.entrySet()) {
+            RedisData<T> redisData = new RedisData<>();
+            redisData.setData(entry.getValue());
+            redisData.setExpireTime(now.plusSeconds(seconds + ThreadLocalRandom.current().nextLong(seconds / 10 + 1)));
+            writes.put(entry.getKey().getBytes(StandardCharsets.UTF_8), cacheCodec.encodeLogical(redisData));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<byte[], byte[]> entry : writes.entrySet()) {
+                connection.stringCommands().set(entry.getKey(), entry.getValue());
+            }
+            return null;
+        });
+        for (String key : values.keySet()) {
+            localCache.unpin(key);
+        }
     }
 
     /**
-     * 在redis中存入key，逻辑过期
+     * 逻辑过期解决缓存击穿
+     * 缓存值按type显式反序列化，不依赖泛型推断，避免得到JSONObject而不是实际类型
      *
      */
     public <R, ID> R queryWithLogicExpire(
             String profixKey, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit timeUnit) {
 
         String key = profixKey + id;
+        hotKeyDetector.record(key);
+
+        // 0、先查本地缓存
+        R local = localCache.get(profixKey, key, type);
+        if (local != null) {
+            return local;
+        }
+
+        // 0.1、布隆过滤器判断不存在，直接返回，不再访问redis和数据库
+        if (!bloomFilterClient.mightContain(profixKey, id)) {
+            return null;
+        }
 
         // 1、先从redis看有没有信息
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
 
         // 2、判断缓存是否命中
-        if (StrUtil.isBlank(json)) {        // 未命中，
+        if (bytes == null) {
+            // 2.1 未命中，说明没有预热过，同步加载一次
+            return loadLogical(profixKey, id, type, dbFallBack, time, timeUnit);
+        }
+        if (bytes.length == 0) {
+            // 2.2 命中空值，数据库中也不存在
             return null;
         }
 
 
         // 3、缓存命中，判断是否过期
-
-        /*
-        TypeReference 的作用：
-        TypeReference 是一个抽象类，它允许在运行时保留泛型信息。通过创建一个匿名的子类实例，可以绕过泛型擦除，使得在运行时能够正确地反映出实际的泛型类型。
-        匿名子类的实现：
-        通过使用 new TypeReference<RedisData<Shop>>() {} 创建了一个匿名子类的实例。由于 Java 的匿名子类会保留超类的泛型信息，这里就达到了在运行时保留 RedisData<Shop> 泛型信息的目的。
-        JSON 转换：
-        JSONUtil.toBean(jsonShop, new TypeReference<RedisData<Shop>>() {}, false) 方法接受一个 JSON 字符串 jsonShop，以及一个 TypeReference 对象。
-        通过传递具体的 TypeReference 对象，JSON 转换工具能够利用其中的泛型信息来正确地还原对象的类型。
-        第三个参数 false：
-        有些 JSON 转换库允许用户选择是否缓存泛型信息。在这里，第三个参数 false 表示不缓存泛型信息，这可能有助于避免一些潜在的性能问题。
-         */
-        RedisData<R> redisData = JSONUtil.toBean(json, new TypeReference<RedisData<R>>() {
-        }, false);
+        RedisData<R> redisData = cacheCodec.decodeLogical(bytes, type);
 
         R data = redisData.getData();
         LocalDateTime expireTime = redisData.getExpireTime();
         if (expireTime.isAfter(LocalDateTime.now())) {  // 判断过期时间是否在当前时间之后
-            // 没过期
-            return data;     // 直接返回
+            // 没过期，写入本地缓存后直接返回
+            localCache.put(profixKey, key, data);
+            return data;
         }
         // 4、过期了
-        // 4.1 尝试获取互斥锁
-        String lockKey = LOCK_KEY + id;
-        boolean isLock = tryLock(lockKey);
+        // 4.1 尝试获取互斥锁，对应redis中的 lock:{key}
+        ILock lock = lockClient.getLock(key);
+        boolean isLock = lock.tryLock(LOCK_CACHE_REBUILD_TTL);
 
         // 4.1.1 获取成功，再检测redis缓存是否过期，做一个doubleCheck
         if (isLock) {
 
-            // 再检测redis缓存是否过期
-            json = stringRedisTemplate.opsForValue().get(key);
-            redisData = JSONUtil.toBean(json, new TypeReference<RedisData<R>>() {
-            }, false);
+            // 再检测redis缓存是否过期，要绕过本地固定的热点值
+            bytes = getRedisBytes(key);
+            if (bytes == null || bytes.length == 0) {
+                // 缓存刚被删除，交给下一次访问重新加载
+                lock.unlock();
+                return data;
+            }
+            redisData = cacheCodec.decodeLogical(bytes, type);
             data = redisData.getData();
             expireTime = redisData.getExpireTime();
             if (expireTime.isAfter(LocalDateTime.now())) {  // 判断过期时间是否在当前时间之后
                 // 没过期
-                unLock(lockKey);    // 释放锁，然后返回
+                lock.unlock();    // 释放锁，然后返回
                 return data;
             }
-            try {
-                // 还是过期的，此时开启一个新线程完成数据重建，原线程返回旧数据
-                CACHE_REBUILD_EXECUTOR.submit(() -> {
-                    // 重建缓存
-                    R sqlData = dbFallBack.apply(id);
-                    this.setWithLogicExpire(key, sqlData, time, timeUnit);
-                });
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            } finally {
-                unLock(lockKey);        // 最后释放锁
-            }
+            // 还是过期的，此时开启一个新线程完成数据重建，原线程返回旧数据（锁在重建完成后释放）
+            submitRebuild(profixKey, id, dbFallBack, time, timeUnit, lock);
         }
         // 4.1.2 获取失败，返回之前的商铺信息
 
         return data;
     }
 
+    /**
+     * 逻辑过期 + 概率提前刷新（XFetch）
+     * 没过期时也会以一定概率提前发起后台重建，越接近过期时间、重建耗时越长，概率越大，
+     * 这样热点key在过期前就已经被刷新，避免所有请求在过期那一刻同时去抢锁
+     *
+     */
+    public <R, ID> R queryWithEarlyRefresh(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit timeUnit) {
+
+        String key = keyPrefix + id;
+        hotKeyDetector.record(key);
+
+        // 0、先查本地缓存
+        R local = localCache.get(keyPrefix, key, type);
+        if (local != null) {
+            return local;
+        }
+
+        // 0.1、布隆过滤器判断不存在，直接返回，不再访问redis和数据库
+        if (!bloomFilterClient.mightContain(keyPrefix, id)) {
+            return null;
+        }
+
+        // 1、先从redis看有没有信息
+        byte[] bytes = getBytes(key);
+
+        // 2、判断缓存是否命中
+        if (bytes == null) {
+            // 2.1 未命中，说明没有预热过，同步加载一次
+            return loadLogical(keyPrefix, id, type, dbFallBack, time, timeUnit);
+        }
+        if (bytes.length == 0) {
+            // 2.2 命中空值，数据库中也不存在
+            return null;
+        }
+
+        // 3、缓存命中，判断是否过期，或者是否需要提前刷新
+        RedisData<R> redisData = cacheCodec.decodeLogical(bytes, type);
+        R data = redisData.getData();
+        LocalDateTime expireTime = redisData.getExpireTime();
+        boolean expired = !expireTime.isAfter(LocalDateTime.now());
+        if (!expired) {
+            localCache.put(keyPrefix, key, data);
+            if (!shouldRefreshEarly(keyPrefix, expireTime)) {
+                return data;
+            }
+        }
+
+        // 4、过期了或者命中了提前刷新，尝试获取互斥锁，只让一个线程去重建
+        ILock lock = lockClient.getLock(key);
+        if (lock.tryLock(LOCK_CACHE_REBUILD_TTL)) {
+            // 4.1 doubleCheck：过期时间已经被别人延后了，说明已经刷新过了
+            bytes = getRedisBytes(key);
+            if (bytes == null || bytes.length == 0) {
+                // 缓存刚被删除，交给下一次访问重新加载
+                lock.unlock();
+                return data;
+            }
+            RedisData<R> current = cacheCodec.decodeLogical(bytes, type);
+            if (current.getExpireTime().isAfter(expireTime)) {
+                lock.unlock();
+                return current.getData();
+            }
+            // 4.2 开启新线程重建，原线程返回旧数据（锁在重建完成后释放）
+            submitRebuild(keyPrefix, id, dbFallBack, time, timeUnit, lock);
+        }
+        return data;
+    }
+
+    /**
+     * 逻辑过期的key不存在时同步加载：同一节点内只让一个线程查库，节点之间由分布式锁排队，数据库中不存在的写入空值
+     */
+    private <R, ID> R loadLogical(
+            String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit timeUnit) {
+        String key = keyPrefix + id;
+        return singleFlight.execute(key, () -> loadWithLock(
+                key,
+                bytes -> {
+                    R r = cacheCodec.decodeLogical(bytes, type).getData();
+                    localCache.put(keyPrefix, key, r);
+                    return r;
+                },
+                () -> {
+                    long begin = System.nanoTime();
+                    R r = dbFallBack.apply(id);
+                    if (r == null) {
+                        setBytes(key, new byte[0], CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        return null;
+                    }
+                    setWithLogicExpire(key, r, time, timeUnit);
+                    recordRebuildCost(keyPrefix, System.nanoTime() - begin);
+                    localCache.put(keyPrefix, key, r);
+                    return r;
+                },
+                () -> dbFallBack.apply(id)));
+    }
+
+    /**
+     * 缓存未命中时的加载：阻塞等待同名的分布式锁，持有者释放时由解锁通知唤醒，
+     * 拿到锁后先再查一次redis，等锁期间其他节点已经写好的直接使用，不再查库；
+     * 等待超时说明持有者太慢，直接查库返回，不写缓存，避免和持有者的写入交错
+     *
+     * @param key      完整的缓存key，也是锁名
+     * @param decoder  redis中已经有值时的解码方式，空值不会传进来
+     * @param loader   查库并写回缓存
+     * @param fallback 等锁超时时只查库
+     */
+    private <R> R loadWithLock(String key, Function<byte[], R> decoder, Supplier<R> loader, Supplier<R> fallback) {
+        ILock lock = lockClient.getLock(key);
+        boolean isLock;
+        try {
+            isLock = lock.tryLock(loadLockWaitMillis, TimeUnit.SECONDS.toMillis(LOCK_CACHE_REBUILD_TTL), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            isLock = false;
+        }
+        if (!isLock) {
+            loadLockTimeout.increment();
+            return fallback.get();
+        }
+        try {
+            // doubleCheck，要绕过本地固定的热点值
+            byte[] bytes = getRedisBytes(key);
+            if (bytes != null) {
+                return bytes.length == 0 ? null : decoder.apply(bytes);
+            }
+            return loader.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * XFetch：now - delta * beta * ln(rand) >= expireTime 时提前刷新
+     * delta为该前缀重建耗时的平均值，还没有采集到耗时的时候不提前刷新
+     *
+     * @param keyPrefix  key前缀
+     * @param expireTime 逻辑过期时间
+     * @return 是否需要提前刷新
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, LocalDateTime expireTime) {
+        Double delta = rebuildCosts.get(keyPrefix);
+        if (delta == null) {
+            return false;
+        }
+        double random = 1.0 - ThreadLocalRandom.current().nextDouble();     // (0, 1]
+        long gap = (long) (-delta * XFETCH_BETA * Math.log(random));
+        return !LocalDateTime.now().plus(gap, ChronoUnit.NANOS).isBefore(expireTime);
+    }
+
+    /**
+     * 提交后台重建任务，调用者需要已经持有lock，重建完成后在重建线程中释放
+     */
+    private <R, ID> void submitRebuild(
+            String keyPrefix, ID id, Function<ID, R> dbFallBack, Long time, TimeUnit timeUnit, ILock lock) {
+        try {
+            rebuildExecutor.execute(() -> {
+                long begin = System.nanoTime();
+                try {
+                    // 重建缓存
+                    R sqlData = dbFallBack.apply(id);
+                    if (sqlData == null) {
+                        // 数据库中已经删除，和loadLogical一样写入空值，并删除所有节点的本地副本
+                        setBytes(keyPrefix + id, new byte[0], CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        localCache.invalidate(keyPrefix + id);
+                        return;
+                    }
+                    this.setWithLogicExpire(keyPrefix + id, sqlData, time, timeUnit);
+                    // 记录本次重建耗时，用于提前刷新的概率计算
+                    recordRebuildCost(keyPrefix, System.nanoTime() - begin);
+                } catch (Exception e) {
+                    log.error("缓存重建失败，key:{}", keyPrefix + id, e);
+                } finally {
+                    lock.unlock();        // 最后释放锁
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 队列满了，放弃本次重建，调用方照常返回旧数据
+            lock.unlock();
+            rebuildRejected.increment();
+            log.warn("缓存重建队列已满，放弃本次重建，key:{}", keyPrefix + id);
+        }
+    }
+
+    /**
+     * 按前缀记录重建耗时，取指数加权平均，避免一次抖动影响太大；
+     * 每次的耗时记入cache.rebuild.time{prefix}，提前刷新用的平均值导出为cache.rebuild.cost{prefix}
+     */
+    private void recordRebuildCost(String keyPrefix, long costNanos) {
+        rebuildTimers.computeIfAbsent(keyPrefix, prefix -> {
+            Gauge.builder("cache.rebuild.cost", rebuildCosts, costs -> costs.getOrDefault(prefix, 0.0) / 1e6)
+                    .tag("prefix", prefix)
+                    .baseUnit("milliseconds")
+                    .register(meterRegistry);
+            return Timer.builder("cache.rebuild.time")
+                    .tag("prefix", prefix)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+        }).record(costNanos, TimeUnit.NANOSECONDS);
+        rebuildCosts.merge(keyPrefix, (double) costNanos, (old, cost) -> (old * 7 + cost) / 8);
+    }
+
+    /**
+     * 获取某个前缀的平均重建耗时（纳秒），没有记录时返回0
+     */
+    public double getRebuildCost(String keyPrefix) {
+        return rebuildCosts.getOrDefault(keyPrefix, 0.0);
+    }
+
     public <R, ID> R queryWithPassThrough(
             String keyProfix, ID id, Class<R> type, Function<ID, R> dbFallBack, Long time, TimeUnit timeUnit) {
         String key = keyProfix + id;
+        hotKeyDetector.record(key);
+
+        // 0、先查本地缓存
+        R local = localCache.get(keyProfix, key, type);
+        if (local != null) {
+            return local;
+        }
+
+        // 0.1、布隆过滤器判断不存在，直接返回，不再访问redis和数据库
+        if (!bloomFilterClient.mightContain(keyProfix, id)) {
+            return null;
+        }
 
         // 1、先从redis看有没有该商铺信息
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
 
         // 2、判断缓存是否命中
-        if (StrUtil.isNotBlank(json)) {        // 命中，且对象不为空
-            return JSONUtil.toBean(json, type);
+        if (bytes != null && bytes.length > 0) {        // 命中，且对象不为空
+            R r = cacheCodec.decode(bytes, type);
+            localCache.put(keyProfix, key, r);
+            return r;
         }
         // 3、判断命中的是不是空值
-        if (json != null) {
+        if (bytes != null) {
             return null;
         }
 
 
-        // 4、查询数据库
-        R r = dbFallBack.apply(id);     // 这里封装成函数式接口，由调用者处理这里的方法执行
+        // 4、查询数据库：同一节点内同一个key只让一个线程去查，其余线程等待它的结果，节点之间由分布式锁排队
+        return singleFlight.execute(key, () -> loadWithLock(
+                key,
+                cached -> {
+                    R r = cacheCodec.decode(cached, type);
+                    localCache.put(keyProfix, key, r);
+                    return r;
+                },
+                () -> {
+                    R r = dbFallBack.apply(id);     // 这里封装成函数式接口，由调用者处理这里的方法执行
+
+                    // 5、判断数据库是否存在该数据
+                    if (r == null) {
+                        // 将空值写入redis
+                        setBytes(key, new byte[0], CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        return null;
+                    }
+                    // 数据库存在该数据，将存在的数据写入redis
+                    set(key, r, time, timeUnit);
+                    localCache.put(keyProfix, key, r);
+                    return r;
+                },
+                () -> dbFallBack.apply(id)));
+    }
 
-        // 5、判断数据库是否存在该数据
-        if (r == null) {
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        } else {     // 数据库存在该数据
-            // 将存在的数据写入redis
+    /**
+     * 批量查询，缓存穿透的处理方式与queryWithPassThrough相同
+     * 无论多少个id，redis只有一次MGET和一次pipeline回写，数据库只有一次批量查询
+     *
+     * @param keyPrefix       key前缀
+     * @param ids             要查询的id
+     * @param type            缓存的数据类型
+     * @param dbBatchFallBack 按id批量查询数据库，返回 id -> 数据，不存在的id不放进结果
+     * @param time            缓存有效期
+     * @param timeUnit        时间单位
+     * @return id -> 数据，顺序与传入的ids一致，不存在的id不在结果中
+     */
+    public <R, ID> Map<ID, R> queryMany(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                        Function<List<ID>, Map<ID, R>> dbBatchFallBack, Long time, TimeUnit timeUnit) {
+        if (ids == null || ids.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        // 先按传入顺序占位，最后去掉没有查到的
+        Map<ID, R> result = new LinkedHashMap<>();
+        List<ID> redisIds = new ArrayList<>();
+
+        // 0、先查本地缓存，再用布隆过滤器排除一定不存在的id
+        for (ID id : new LinkedHashSet<>(ids)) {
+            result.put(id, null);
+            hotKeyDetector.record(keyPrefix + id);
+            R local = localCache.get(keyPrefix, keyPrefix + id, type);
+            if (local != null) {
+                result.put(id, local);
+            } else if (bloomFilterClient.mightContain(keyPrefix, id)) {
+                redisIds.add(id);
+            }
+        }
 
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), time, timeUnit);
-            return r;
+        // 1、一次MGET查询redis，固定在本地的热点key不用再查
+        List<ID> missIds = new ArrayList<>();
+        if (!redisIds.isEmpty()) {
+            byte[][] values = new byte[redisIds.size()][];
+            List<Integer> mgetIndexes = new ArrayList<>();
+            for (int i = 0; i < values.length; i++) {
+                values[i] = localCache.getPinned(keyPrefix + redisIds.get(i));
+                if (values[i] == null) {
+                    mgetIndexes.add(i);
+                }
+            }
+            if (!mgetIndexes.isEmpty()) {
+                byte[][] rawKeys = new byte[mgetIndexes.size()][];
+                for (int i = 0; i < rawKeys.length; i++) {
+                    rawKeys[i] = (keyPrefix + redisIds.get(mgetIndexes.get(i))).getBytes(StandardCharsets.UTF_8);
+                }
+                List<byte[]> mget = stringRedisTemplate.execute(
+                        (RedisCallback<List<byte[]>>) connection -> connection.stringCommands().mGet(rawKeys));
+                for (int i = 0; mget != null && i < rawKeys.length; i++) {
+                    int index = mgetIndexes.get(i);
+                    values[index] = mget.get(i);
+                    pinIfHot(keyPrefix + redisIds.get(index), values[index]);
+                }
+            }
+            for (int i = 0; i < redisIds.size(); i++) {
+                ID id = redisIds.get(i);
+                byte[] bytes = values[i];
+                if (bytes == null) {
+                    // 2、未命中，等待查询数据库
+                    missIds.add(id);
+                } else if (bytes.length > 0) {
+                    // 3、命中，空值说明数据库中也不存在，直接跳过
+                    R r = cacheCodec.decode(bytes, type);
+                    localCache.put(keyPrefix, keyPrefix + id, r);
+                    result.put(id, r);
+                }
+            }
         }
-    }
 
+        // 4、未命中的id一次性查询数据库，再用一次pipeline全部写回redis，不存在的写入空值
+        if (!missIds.isEmpty()) {
+            Map<ID, R> dbData = dbBatchFallBack.apply(missIds);
+            Map<byte[], byte[]> writes = new LinkedHashMap<>();
+            for (ID id : missIds) {
+                R r = dbData.get(id);
+                writes.put((keyPrefix + id).getBytes(StandardCharsets.UTF_8), r == null ? new byte[0] : cacheCodec.encode(r));
+                if (r != null) {
+                    localCache.put(keyPrefix, keyPrefix + id, r);
+                    result.put(id, r);
+                }
+            }
+            Expiration dataExpiration = Expiration.from(time, timeUnit);
+            Expiration nullExpiration = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                for (Map.Entry<byte[], byte[]> entry : writes.entrySet()) {
+                    byte[] value = entry.getValue();
+                    connection.stringCommands().set(entry.getKey(), value,
+                            value.length == 0 ? nullExpiration : dataExpiration, RedisStringCommands.SetOption.upsert());
+                }
+                return null;
+            });
+        }
 
-    public boolean tryLock(String key) {
-        // setIfAbsent就是setnx（不存在才设置），相当于只能设置一次，以此来实现锁的功能
-        //
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        // 因为Boolean是包装类，其可以为null，但是基本数据类型不能为null，防止空指针异常，这里需要手动拆箱返回
-        return flag != null && flag;
+        result.values().removeIf(r -> r == null);
+        return result;
     }
 
-    public void unLock(String key) {
+    /**
+     * 删除缓存：先删redis，再通知所有节点删除本地缓存
+     *
+     * @param key
+     */
+    public void delete(String key) {
         stringRedisTemplate.delete(key);
+        localCache.invalidate(key);
+    }
+
+    /**
+     * 批量删除缓存，redis中一次DEL，本地缓存的通知一次pipeline
+     *
+     * @param keys
+     */
+    public void deleteMany(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.delete(keys);
+        localCache.invalidateAll(keys);
+    }
+
+    /**
+     * 在事务提交之后删除缓存，没有事务时立即删除
+     * 事务提交前删除的话，并发的读请求可能在提交前把旧数据重新写回缓存
+     *
+     * @param key
+     */
+    public void deleteAfterCommit(String key) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            delete(key);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                delete(key);
+            }
+        });
+    }
+
+
+    /**
+     * 读取缓存的原始值，热点key优先读本地固定的值
+     */
+    private byte[] getBytes(String key) {
+        byte[] pinned = localCache.getPinned(key);
+        if (pinned != null) {
+            return pinned;
+        }
+        byte[] bytes = getRedisBytes(key);
+        pinIfHot(key, bytes);
+        return bytes;
+    }
+
+    /**
+     * 热点key把redis中的值固定到本地，空值也固定，挡住对不存在数据的集中访问
+     */
+    private void pinIfHot(String key, byte[] bytes) {
+        if (bytes != null && hotKeyDetector.isHot(key)) {
+            localCache.pin(key, bytes);
+        }
+    }
+
+    /**
+     * 编码后的值不一定是合法的字符串，所以绕过StringRedisTemplate的序列化直接读写字节
+     */
+    private byte[] getRedisBytes(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.stringCommands().get(rawKey));
+    }
+
+    private void setBytes(String key, byte[] value, Long time, TimeUnit timeUnit) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        Expiration expiration = time == null ? Expiration.persistent() : Expiration.from(time, timeUnit);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.stringCommands()
+                .set(rawKey, value, expiration, RedisStringCommands.SetOption.upsert()));
+        // 本节点固定的旧值立即失效，其他节点的最多在固定的过期时间后失效
+        localCache.unpin(key);
     }
 
 
@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 根据tb_cache_outbox中的变更事件删除缓存
+ * 事件由数据库触发器与业务数据在同一个事务中写入，所以任何途径的修改都不会漏掉；
+ * 一批事件去重后一次删除，并在一段时间后再删一次，清掉删除后、提交前被并发读请求写回的旧值
+ */
+@Slf4j
+@Component
+public class CacheOutboxRelay {
+
+    // 每次调度最多处理的批数，避免积压时长时间持有锁
+    private static final int MAX_BATCHES_PER_POLL = 10;
+
+    private static final String TABLE_SHOP = "tb_shop";
+    private static final String TABLE_VOUCHER = "tb_voucher";
+
+    private static final String OP_INSERT = "I";
+
+    @Resource
+    private CacheOutboxMapper cacheOutboxMapper;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private BloomFilterClient bloomFilterClient;
+
+    @Resource
+    private LockClient lockClient;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 每批读取的事件数
+    @Value("${hmdp.cache.outbox.batch-size:500}")
+    private int batchSize;
+
+    // 第二次删除的延迟，需要大于一次读数据库 + 写缓存的耗时
+    @Value("${hmdp.cache.outbox.second-delete-delay-ms:1000}")
+    private long secondDeleteDelayMillis;
+
+    private final ScheduledExecutorService secondDeleteExecutor = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("cache-second-delete-").setDaemon(true).build());
+
+    @PreDestroy
+    public void destroy() {
+        secondDeleteExecutor.shutdown();
+    }
+
+    /**
+     * 定时拉取事件，多个节点之间用互斥锁保证同一时刻只有一个节点在处理
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.outbox.poll-interval-ms:200}")
+    public void relay() {
+        ILock lock = lockClient.getLock(LOCK_CACHE_OUTBOX_NAME);
+        if (!lock.tryLock(LOCK_CACHE_OUTBOX_TTL)) {
+            return;
+        }
+        try {
+            for (int i = 0; i < MAX_BATCHES_PER_POLL; i++) {
+                List<CacheOutbox> events = cacheOutboxMapper.selectList(new QueryWrapper<CacheOutbox>()
+                        .orderByAsc("id")
+                        .last("limit " + batchSize));
+                if (events.isEmpty()) {
+                    return;
+                }
+                handle(events);
+                // 缓存处理完才删除事件，中途失败的话下次会重新处理，删除缓存是幂等的
+                cacheOutboxMapper.deleteBatchIds(events.stream().map(CacheOutbox::getId).collect(Collectors.toList()));
+                if (events.size() < batchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            log.error("缓存失效事件处理失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 处理一批事件
+     */
+    public void handle(List<CacheOutbox> events) {
+        // 1、去重，同一行在一批中多次变更只处理一次
+        Set<Long> shopIds = new LinkedHashSet<>();
+        Set<Long> insertedShopIds = new HashSet<>();
+        Map<Long, Set<Long>> oldTypeIds = new HashMap<>();
+        Set<String> keys = new LinkedHashSet<>();
+        for (CacheOutbox event : events) {
+            if (TABLE_SHOP.equals(event.getTableName())) {
+                shopIds.add(event.getRowId());
+                keys.add(CACHE_SHOP_KEY + event.getRowId());
+                if (OP_INSERT.equals(event.getOp())) {
+                    insertedShopIds.add(event.getRowId());
+                }
+                if (event.getOldTypeId() != null) {
+                    oldTypeIds.computeIfAbsent(event.getRowId(), id -> new HashSet<>()).add(event.getOldTypeId());
+                }
+            } else if (TABLE_VOUCHER.equals(event.getTableName()) && event.getShopId() != null) {
+                keys.add(CACHE_SHOP_VOUCHER_KEY + event.getShopId());
+            }
+        }
+
+        // 2、删除缓存，一段时间后再删一次
+        cacheClient.deleteMany(keys);
+        secondDeleteExecutor.schedule(() -> {
+            try {
+                cacheClient.deleteMany(keys);
+            } catch (Exception e) {
+                log.error("缓存延迟删除失败，key个数：{}", keys.size(), e);
+            }
+        }, secondDeleteDelayMillis, TimeUnit.MILLISECONDS);
+
+        // 3、店铺的GEO和布隆过滤器
+        if (!shopIds.isEmpty()) {
+            syncShopGeo(shopIds, oldTypeIds);
+            for (Long shopId : insertedShopIds) {
+                bloomFilterClient.add(CACHE_SHOP_KEY, shopId);
+            }
+        }
+    }
+
+    /**
+     * 店铺的坐标或类型变了，GEO中的位置要跟着变：类型变了或者店铺被删除时从旧类型中移除，存在的店铺写入当前类型
+     */
+    private void syncShopGeo(Set<Long> shopIds, Map<Long, Set<Long>> oldTypeIds) {
+        Map<Long, Shop> shops = shopMapper.selectBatchIds(shopIds).stream()
+                .collect(Collectors.toMap(Shop::getId, Function.identity()));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Long shopId : shopIds) {
+                Shop shop = shops.get(shopId);
+                byte[] member = shopId.toString().getBytes(StandardCharsets.UTF_8);
+                for (Long oldTypeId : oldTypeIds.getOrDefault(shopId, new HashSet<>())) {
+                    if (shop == null || !oldTypeId.equals(shop.getTypeId())) {
+                        connection.zSetCommands().zRem((SHOP_GEO_KEY + oldTypeId).getBytes(StandardCharsets.UTF_8), member);
+                    }
+                }
+                if (shop != null && shop.getX() != null && shop.getY() != null) {
+                    connection.geoCommands().geoAdd((SHOP_GEO_KEY + shop.getTypeId()).getBytes(StandardCharsets.UTF_8),
+                            new Point(shop.getX(), shop.getY()), member);
+                }
+            }
+            return null;
+        });
+    }
+}
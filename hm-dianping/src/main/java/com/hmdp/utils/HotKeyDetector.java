@@ -0,0 +1,183 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测
+ * 按采样率抽样记录key的访问，计数放在count-min sketch中，多个sketch组成环形的滑动窗口，
+ * 窗口内估算访问量超过阈值的key判定为热点，由CacheClient固定到本地，访问量回落后自动降级
+ * 只统计经过CacheClient读取的缓存key，统计了也固定不了的key（在lua中扣减的秒杀库存、登录token的hash）不记录，避免挤占排名
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    // count-min sketch的行数和每行的宽度（2的幂）
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 11;
+
+    // 滑动窗口由多少个时间片组成，每个时间片1秒
+    private static final int SLOTS = 10;
+
+    // 候选key的最大个数，超过后不再接收新的候选
+    private static final int MAX_CANDIDATES = 1000;
+
+    private final LocalCache localCache;
+
+    // 采样率，(0, 1]
+    private final double sampleRate;
+
+    // 一个窗口内的访问量达到多少判定为热点
+    private final long threshold;
+
+    // 对外展示的热点个数
+    private final int topK;
+
+    // 每个时间片一个sketch，下标为[行 * WIDTH + 列]
+    private final AtomicIntegerArray[] sketches = new AtomicIntegerArray[SLOTS];
+
+    private volatile int current = 0;
+
+    // 访问量达到阈值一半的key，只有它们参与排名，降低统计开销
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+
+    // 当前的热点key -> 窗口内估算访问量
+    private volatile Map<String, Long> hotKeys = Collections.emptyMap();
+
+    public HotKeyDetector(LocalCache localCache,
+                          @Value("${hmdp.hot-key.sample-rate:0.1}") double sampleRate,
+                          @Value("${hmdp.hot-key.threshold:5000}") long threshold,
+                          @Value("${hmdp.hot-key.top-k:20}") int topK) {
+        this.localCache = localCache;
+        this.sampleRate = sampleRate;
+        this.threshold = threshold;
+        this.topK = topK;
+        for (int i = 0; i < SLOTS; i++) {
+            sketches[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+    }
+
+    /**
+     * 记录一次访问，只有被抽中的访问才计数
+     *
+     * @param key 完整的redis key
+     */
+    public void record(String key) {
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        int h1 = mix(key.hashCode());
+        int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+        AtomicIntegerArray sketch = sketches[current];
+        for (int row = 0; row < DEPTH; row++) {
+            sketch.incrementAndGet(row * WIDTH + ((h1 + row * h2) & (WIDTH - 1)));
+        }
+        // 已经是候选的key在窗口滑动时统一重新估算，这里不用重复计算
+        if (candidates.containsKey(key) || candidates.size() >= MAX_CANDIDATES) {
+            return;
+        }
+        long estimate = estimate(key);
+        if (estimate * 2 >= threshold) {
+            candidates.put(key, estimate);
+        }
+    }
+
+    /**
+     * 是否是热点key
+     */
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 当前访问量最高的key，按访问量倒序
+     */
+    public Map<String, Long> getTopKeys() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(candidates.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (int i = 0; i < entries.size() && i < topK; i++) {
+            top.put(entries.get(i).getKey(), entries.get(i).getValue());
+        }
+        return top;
+    }
+
+    /**
+     * 每秒滑动一次窗口：清空最老的时间片，重新计算候选key的访问量，更新热点集合
+     */
+    @Scheduled(fixedRate = 1000)
+    public void rotate() {
+        // 1、最老的时间片清零后作为新的当前时间片
+        int next = (current + 1) % SLOTS;
+        AtomicIntegerArray sketch = sketches[next];
+        for (int i = 0; i < sketch.length(); i++) {
+            sketch.set(i, 0);
+        }
+        current = next;
+
+        // 2、重新估算候选key，访问量回落的移出候选
+        Map<String, Long> hot = new ConcurrentHashMap<>();
+        candidates.replaceAll((key, old) -> estimate(key));
+        candidates.values().removeIf(estimate -> estimate * 2 < threshold);
+        candidates.forEach((key, estimate) -> {
+            if (estimate >= threshold) {
+                hot.put(key, estimate);
+            }
+        });
+
+        // 3、不再是热点的key从本地删除，让请求重新回到redis
+        for (String key : hotKeys.keySet()) {
+            if (!hot.containsKey(key)) {
+                localCache.unpin(key);
+                log.info("热点key降级：{}", key);
+            }
+        }
+        for (String key : hot.keySet()) {
+            if (!hotKeys.containsKey(key)) {
+                log.info("发现热点key：{}，窗口内访问量约为：{}", key, hot.get(key));
+            }
+        }
+        hotKeys = hot;
+    }
+
+    /**
+     * 估算整个窗口内的访问量：每个时间片取各行的最小值，再按采样率还原
+     */
+    private long estimate(String key) {
+        int h1 = mix(key.hashCode());
+        int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+        long total = 0;
+        for (AtomicIntegerArray sketch : sketches) {
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, sketch.get(row * WIDTH + ((h1 + row * h2) & (WIDTH - 1))));
+            }
+            total += min;
+        }
+        return (long) (total / sampleRate);
+    }
+
+    /**
+     * murmur3的finalizer，打散String.hashCode的低位
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
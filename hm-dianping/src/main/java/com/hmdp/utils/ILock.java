@@ -1,5 +1,7 @@
 package com.hmdp.utils;
 
+import java.util.concurrent.TimeUnit;
+
 public interface ILock {
 
     /**
@@ -9,10 +11,26 @@ public interface ILock {
      */
     boolean tryLock(long timeoutSec);
 
+    /**
+     * 尝试获取锁，阻塞式实现，获取失败时等待锁被释放的通知，最多等待waitTime
+     * @param waitTime 最长等待时间
+     * @param leaseTime 过期时间
+     * @param unit 时间单位
+     * @return true代表成功，false代表等待超时
+     */
+    boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException;
+
     /**
      * 释放锁
      *
      */
     void unlock();
 
+    /**
+     * 当前持有锁的fencing token，每次新加锁都比之前任何一次大，重入时不变，
+     * 受锁保护的写操作带上它并拒绝比已写入的token小的请求，可以挡住锁过期后迟到的旧持有者
+     * @return 没有持有锁时返回0
+     */
+    long getFencingToken();
+
 }
@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 基于位数组的布隆过滤器，元素是数据库的自增id
+ * 判断不存在时一定不存在，判断存在时有fpp的概率误判
+ */
+public class IdBloomFilter {
+
+    // 位数组长度
+    private final long numBits;
+
+    // 哈希函数个数
+    private final int numHashes;
+
+    private final AtomicLongArray bits;
+
+    /**
+     * @param expectedInsertions 预计元素个数
+     * @param fpp                可接受的误判率
+     */
+    public IdBloomFilter(long expectedInsertions, double fpp) {
+        // m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(64, (m + 63) / 64 * 64);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.bits = new AtomicLongArray((int) (numBits / 64));
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    /**
+     * 计算id对应的所有bit下标，用两个哈希值组合出k个哈希值（Kirsch-Mitzenmacher）
+     */
+    public long[] offsets(long id) {
+        long hash1 = mix(id);
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+        long[] offsets = new long[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = Math.floorMod(hash1 + i * hash2, numBits);
+        }
+        return offsets;
+    }
+
+    public void put(long id) {
+        for (long offset : offsets(id)) {
+            int index = (int) (offset >>> 6);
+            long mask = 1L << offset;
+            long old;
+            do {
+                old = bits.get(index);
+            } while ((old & mask) == 0 && !bits.compareAndSet(index, old, old | mask));
+        }
+    }
+
+    public boolean mightContain(long id) {
+        for (long offset : offsets(id)) {
+            if ((bits.get((int) (offset >>> 6)) & (1L << offset)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 转换成redis位图的字节格式：redis中第i位对应第i/8个字节的从高到低第i%8位
+     */
+    public byte[] toRedisBitmap() {
+        byte[] bytes = new byte[(int) (numBits / 8)];
+        for (int i = 0; i < bits.length(); i++) {
+            long word = bits.get(i);
+            if (word == 0) {
+                continue;
+            }
+            for (int bit = 0; bit < 64; bit++) {
+                if ((word & (1L << bit)) != 0) {
+                    long offset = ((long) i << 6) + bit;
+                    bytes[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 把redis位图合并进来（按位或），redis中的位图只会比本地多，不会清除本地已有的位
+     */
+    public void mergeRedisBitmap(byte[] bytes) {
+        int length = (int) Math.min(bytes.length, numBits / 8);
+        for (int i = 0; i < length; i++) {
+            int b = bytes[i] & 0xff;
+            if (b == 0) {
+                continue;
+            }
+            for (int bit = 0; bit < 8; bit++) {
+                if ((b & (0x80 >>> bit)) != 0) {
+                    long offset = ((long) i << 3) + bit;
+                    int index = (int) (offset >>> 6);
+                    long mask = 1L << offset;
+                    long old;
+                    do {
+                        old = bits.get(index);
+                    } while ((old & mask) == 0 && !bits.compareAndSet(index, old, old | mask));
+                }
+            }
+        }
+    }
+
+    /**
+     * murmur3的fmix64，把连续的id打散
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 进程内的一级缓存（L1），redis作为二级缓存（L2）
+ * 按key前缀划分，每个前缀单独设置容量和过期时间，超出容量按LRU淘汰
+ * 删除缓存时通过redis的发布订阅通知所有节点清理各自的本地副本
+ */
+@Slf4j
+@Component
+public class LocalCache implements MessageListener {
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    // key前缀 -> 该前缀对应的本地缓存
+    private final Map<String, LRUCache<String, Object>> caches = new ConcurrentHashMap<>();
+
+    // 固定在本地的热点key -> redis中的原始值，存字节而不是对象，避免调用方修改共享的对象
+    private final LRUCache<String, byte[]> pinned = CacheUtil.newLRUCache(LOCAL_CACHE_PIN_SIZE, TimeUnit.SECONDS.toMillis(LOCAL_CACHE_PIN_TTL));
+
+    public LocalCache(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        // 店铺详情是最热的读路径，默认开启本地缓存
+        register(CACHE_SHOP_KEY, LOCAL_CACHE_SHOP_SIZE, LOCAL_CACHE_SHOP_TTL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 为某个key前缀开启本地缓存
+     *
+     * @param keyPrefix key前缀
+     * @param capacity  最多缓存的条目数
+     * @param ttl       写入后多久过期
+     * @param timeUnit  时间单位
+     */
+    public void register(String keyPrefix, int capacity, long ttl, TimeUnit timeUnit) {
+        caches.put(keyPrefix, CacheUtil.newLRUCache(capacity, timeUnit.toMillis(ttl)));
+    }
+
+    public <R> R get(String keyPrefix, String key, Class<R> type) {
+        LRUCache<String, Object> cache = caches.get(keyPrefix);
+        if (cache == null) {
+            return null;
+        }
+        // false：读取时不刷新过期时间，保证按写入时间过期，避免热点数据一直不更新
+        Object value = cache.get(key, false);
+        return type.isInstance(value) ? type.cast(value) : null;
+    }
+
+    public void put(String keyPrefix, String key, Object value) {
+        LRUCache<String, Object> cache = caches.get(keyPrefix);
+        if (cache == null || value == null) {
+            return;
+        }
+        cache.put(key, value);
+    }
+
+    /**
+     * 把热点key在redis中的值固定到本地，过期时间很短，用来挡住打到同一个redis分片上的流量
+     */
+    public void pin(String key, byte[] value) {
+        pinned.put(key, value);
+    }
+
+    public byte[] getPinned(String key) {
+        return pinned.get(key, false);
+    }
+
+    public void unpin(String key) {
+        pinned.remove(key);
+    }
+
+    /**
+     * 删除本地副本，并广播给其他节点
+     *
+     * @param key 完整的缓存key
+     */
+    public void invalidate(String key) {
+        evict(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 批量删除本地副本，广播消息用一次pipeline发出
+     *
+     * @param keys 完整的缓存key
+     */
+    public void invalidateAll(Collection<String> keys) {
+        for (String key : keys) {
+            evict(key);
+        }
+        byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.publish(channel, key.getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 收到其他节点（包括自己）的删除通知
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        evict(key);
+    }
+
+    private void evict(String key) {
+        pinned.remove(key);
+        for (Map.Entry<String, LRUCache<String, Object>> entry : caches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                entry.getValue().remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式锁的装饰器：先拿本节点同名的本地锁，再拿被装饰的锁，本地锁被同节点的其他线程占用时直接失败，不访问redis
+ * 本地锁按锁名分配，不同的锁名不会互相阻塞，同一个线程先后持有多把不同的锁也不会自己等自己
+ * 重入时本地锁已经持有，只对被装饰的锁重入
+ * 阻塞等待时本地锁是公平的，同一个key在本节点按到达顺序排队，只有队头的线程去redis等解锁通知
+ */
+public class LocalFirstLock implements ILock {
+
+    private final ILock delegate;
+
+    private final String name;
+
+    private final LocalLockTable localLocks;
+
+    // 在本地锁上竞争失败的次数
+    private final Counter localWait;
+
+    // 拿到本地锁后在redis上竞争失败的次数
+    private final Counter remoteWait;
+
+    // 阻塞加锁的等待时间，按是否拿到锁区分
+    private final Timer acquiredTimer;
+
+    private final Timer timeoutTimer;
+
+    // 以下字段由this同步，local只在持有期间不为null
+    private int holdCount;
+    private Semaphore local;
+
+    public LocalFirstLock(ILock delegate, String name, LocalLockTable localLocks, Counter localWait, Counter remoteWait,
+                          Timer acquiredTimer, Timer timeoutTimer) {
+        this.delegate = delegate;
+        this.name = name;
+        this.localLocks = localLocks;
+        this.localWait = localWait;
+        this.remoteWait = remoteWait;
+        this.acquiredTimer = acquiredTimer;
+        this.timeoutTimer = timeoutTimer;
+    }
+
+    @Override
+    public synchronized boolean tryLock(long timeoutSec) {
+        // 1、重入
+        if (holdCount > 0) {
+            if (!delegate.tryLock(timeoutSec)) {
+                return false;
+            }
+            holdCount++;
+            return true;
+        }
+
+        // 2、本地锁，带超时的tryAcquire才遵守公平排队
+        Semaphore semaphore = localLocks.retain(name);
+        boolean success = false;
+        try {
+            if (!semaphore.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                localWait.increment();
+                return false;
+            }
+            // 3、redis，失败时归还本地锁
+            try {
+                success = delegate.tryLock(timeoutSec);
+            } finally {
+                if (!success) {
+                    semaphore.release();
+                }
+            }
+            if (!success) {
+                remoteWait.increment();
+                return false;
+            }
+            local = semaphore;
+            holdCount = 1;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (!success) {
+                localLocks.release(name);
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        // 1、重入
+        synchronized (this) {
+            if (holdCount > 0) {
+                if (!delegate.tryLock(waitTime, leaseTime, unit)) {
+                    return false;
+                }
+                holdCount++;
+                return true;
+            }
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + unit.toNanos(waitTime);
+        Semaphore semaphore = localLocks.retain(name);
+        boolean success = false;
+        try {
+            // 2、本地锁，被同节点的线程占用时排队等待，不访问redis
+            if (!semaphore.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                localWait.increment();
+                if (!semaphore.tryAcquire(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+
+            // 3、redis，先尝试一次，失败后等解锁通知
+            try {
+                success = delegate.tryLock(0, leaseTime, unit);
+                if (!success) {
+                    remoteWait.increment();
+                    success = delegate.tryLock(Math.max(deadline - System.nanoTime(), 0), unit.toNanos(leaseTime), TimeUnit.NANOSECONDS);
+                }
+            } finally {
+                if (!success) {
+                    semaphore.release();
+                }
+            }
+            if (success) {
+                synchronized (this) {
+                    local = semaphore;
+                    holdCount = 1;
+                }
+            }
+            return success;
+        } finally {
+            if (!success) {
+                localLocks.release(name);
+            }
+            (success ? acquiredTimer : timeoutTimer).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public synchronized void unlock() {
+        if (holdCount == 0) {
+            return;
+        }
+        try {
+            delegate.unlock();
+        } finally {
+            // 最后一次释放才归还本地锁
+            if (--holdCount == 0) {
+                local.release();
+                local = null;
+                localLocks.release(name);
+            }
+        }
+    }
+
+    @Override
+    public long getFencingToken() {
+        return delegate.getFencingToken();
+    }
+}
@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 本节点按锁名分配的本地锁，每个锁名一把公平的信号量，不同的锁名之间互不影响
+ * 有线程在排队或持有时才存在，引用计数归零后移除，锁名再多也不会一直占用内存
+ */
+public class LocalLockTable {
+
+    // 锁名 -> 本地锁，引用计数的修改都在compute中完成
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 引用一把本地锁，在第一次尝试获取之前调用，之后必须调用一次release
+     */
+    public Semaphore retain(String name) {
+        return entries.compute(name, (k, entry) -> {
+            if (entry == null) {
+                entry = new Entry();
+            }
+            entry.refs++;
+            return entry;
+        }).semaphore;
+    }
+
+    /**
+     * 归还引用，最后一个引用归还后移除
+     */
+    public void release(String name) {
+        entries.computeIfPresent(name, (k, entry) -> --entry.refs == 0 ? null : entry);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static class Entry {
+
+        // 释放可以在另一个线程，和SimpleRedisLock一致，所以用信号量而不是ReentrantLock
+        private final Semaphore semaphore = new Semaphore(1, true);
+
+        private int refs;
+    }
+}
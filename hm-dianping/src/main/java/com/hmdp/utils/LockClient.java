@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+/**
+ * 分布式锁的入口：先在本节点取同名的本地锁，拿到后才去redis竞争，
+ * 同一节点内线程之间的竞争在本地就被挡住，不产生网络请求，redis上只剩节点之间的竞争
+ */
+@Component
+public class LockClient {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private UnlockNotifier unlockNotifier;
+
+    // 锁名 -> 本地锁，只保留正在使用的锁名
+    private final LocalLockTable localLocks = new LocalLockTable();
+
+    private Counter localWait;
+
+    private Counter remoteWait;
+
+    private Timer acquiredTimer;
+
+    private Timer timeoutTimer;
+
+    @PostConstruct
+    public void init() {
+        meterRegistry.gauge("lock.local.size", localLocks, LocalLockTable::size);
+        localWait = meterRegistry.counter("lock.wait", "level", "local");
+        remoteWait = meterRegistry.counter("lock.wait", "level", "remote");
+        acquiredTimer = waitTimer("acquired");
+        timeoutTimer = waitTimer("timeout");
+    }
+
+    /**
+     * 获取一把锁，对应redis中的 lock:{name}，每次需要互斥的操作都获取一个新的锁对象
+     */
+    public ILock getLock(String name) {
+        return new LocalFirstLock(new SimpleRedisLock(name, stringRedisTemplate, redisScriptRegistry, unlockNotifier),
+                name, localLocks, localWait, remoteWait, acquiredTimer, timeoutTimer);
+    }
+
+    /**
+     * 阻塞加锁的等待时间分布
+     */
+    private Timer waitTimer(String result) {
+        return Timer.builder("lock.wait.time")
+                .tag("result", result)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+}
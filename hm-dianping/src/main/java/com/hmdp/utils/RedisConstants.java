@@ -5,18 +5,54 @@ public class RedisConstants {
     public static final Long LOGIN_CODE_TTL = 2L;
     public static final String LOGIN_TOKEN_KEY = "login:token:";
     public static final Long LOGIN_TOKEN_TTL = 36000L;
+    public static final String LOGIN_USER_KEY = "login:user:";
 
     public static final Long CACHE_NULL_TTL = 2L;
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop-type";
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:shop-voucher:";
+    public static final Long CACHE_SHOP_VOUCHER_TTL = 10L;
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final Long CACHE_BLOG_TTL = 30L;
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
 
-    public static final String LOCK_SHOP_KEY = "lock:shop:";
-    public static final String LOCK_KEY = "lock:";
-    public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String BLOOM_KEY = "bloom:";
+    public static final long BLOOM_EXPECTED_INSERTIONS = 1000000L;
+    public static final double BLOOM_FPP = 0.01;
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final int LOCAL_CACHE_SHOP_SIZE = 1000;
+    public static final Long LOCAL_CACHE_SHOP_TTL = 10L;
+    public static final int LOCAL_CACHE_PIN_SIZE = 1000;
+    public static final Long LOCAL_CACHE_PIN_TTL = 2L;
+
+    public static final String LOCK_FENCE_KEY = "lock:fence:";
+    public static final Long LOCK_FENCE_TTL = 1L;
+    public static final String LOCK_UNLOCK_CHANNEL = "lock:unlock";
+    public static final String LOCK_CACHE_OUTBOX_NAME = "cache:outbox";
+    public static final Long LOCK_CACHE_OUTBOX_TTL = 10L;
+    public static final Long LOCK_CACHE_REBUILD_TTL = 10L;
+    public static final String LOCK_SECKILL_RECONCILE_NAME = "seckill:reconcile";
+    public static final Long LOCK_SECKILL_RECONCILE_TTL = 30L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_RECOVERY_CONSUMER = "recovery";
+    public static final String SECKILL_ORDER_DLQ_KEY = "stream.orders.dlq";
+    public static final String SECKILL_ORDER_CONSUMER_KEY = "stream:orders:consumer:";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last:";
+    public static final Long ID_WORKER_LAST_TTL = 1L;
+    public static final Long ID_WORKER_RELEASE_TTL = 2L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
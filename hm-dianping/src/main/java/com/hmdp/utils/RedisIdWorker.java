@@ -1,25 +1,137 @@
 package com.hmdp.utils;
 
 
-import org.springframework.data.redis.core.RedisTemplate;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 全局唯一id：[时间戳 31位，秒][序列号 32位]，序列号按业务和日期在redis中自增
+ * redis模式每个id一次INCR；segment模式每个节点一次INCRBY申请一段序列号，在本地用原子计数发放，
+ * 当前号段快用完时由后台线程提前申请下一段，发放不等待redis
+ * snowflake模式完全在本地生成：[时间戳 31位，秒][1][worker id 10位][序列号 21位]，时间戳和前两种模式完全相同，
+ * 低32位的最高位固定为1，redis序列号每天从1开始自增，到不了2^31，所以两种id不会重复，
+ * 同一秒内snowflake的id大于redis模式的id，切换模式后id仍然按时间递增；
+ * worker id在启动时从redis租用并在后台续期，生成id时不访问网络；
+ * 每次租用、续期都在redis中记下本次租约内最后可能生成id的时间，下一个持有者要等这个时间所在的秒过去后才生成id，
+ * 释放时不删除租约，只缩短到宽限期，避免接手的节点在同一秒内生成和上一个持有者相同的id
+ */
+@Slf4j
 @Component
 public class RedisIdWorker {
 
+    private static final String MODE_SEGMENT = "segment";
+
+    private static final String MODE_SNOWFLAKE = "snowflake";
+
+    // 续期、释放worker id租约的脚本，对应resources下的id_worker.lua
+    private static final String ID_WORKER_SCRIPT = "id_worker";
+
     private StringRedisTemplate redisTemplate;
 
+    // 序列号的日期部分，和原来的key保持一致：icr:order:2022:01:01
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private static final long SECONDS_PER_DAY = 86400L;
+
+    // id生成方式：redis、segment、snowflake
+    @Value("${hmdp.id.mode:redis}")
+    private String mode;
+
+    // segment模式每次申请的序列号个数
+    @Value("${hmdp.id.segment-size:1000}")
+    private int segmentSize;
+
+    // 当前号段剩余不到这个比例时提前申请下一段
+    @Value("${hmdp.id.prefetch-ratio:0.2}")
+    private double prefetchRatio;
+
+    // worker id租约的有效期
+    @Value("${hmdp.id.worker-lease-ms:30000}")
+    private long workerLeaseMs;
+
+    // 允许等待的最大时钟回拨，超过后拒绝生成id
+    @Value("${hmdp.id.max-backward-ms:10}")
+    private long maxBackwardMs;
 
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    // 业务key前缀 -> 号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("id-segment-").setDaemon(true).build());
+
+    // worker id租约的持有者标识
+    private final String workerOwner = UUID.randomUUID().toString(true);
+
+    private volatile int workerId = -1;
+
+    // 本地认为租约有效的截止时间，从发起续期的时刻算起，不会晚于redis中key的过期时间
+    private volatile long workerLeaseExpireAt;
+
+    // 上一次生成id的毫秒时间和该秒内的序列号，由this同步
+    private long lastMillis = -1L;
+    private long sequence;
+
+    // snowflake使用启动时的时区偏移，和redis模式的时间戳保持同一个基准，运行期间的夏令时切换不会被当成时钟回拨
+    private final long zoneOffsetMillis = TimeUnit.SECONDS.toMillis(
+            ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds());
 
     public RedisIdWorker(StringRedisTemplate redisTemplate) {
         this.redisTemplate = redisTemplate;
     }
 
+    @PostConstruct
+    public void init() {
+        if (MODE_SNOWFLAKE.equals(mode)) {
+            leaseWorkerId();
+            log.info("已租用worker id：{}", workerId);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void destroy() {
+        prefetchExecutor.shutdown();
+        if (MODE_SNOWFLAKE.equals(mode) && workerId >= 0) {
+            try {
+                // 之后不再生成id，最后使用的时间就是现在
+                long lastUsedAt = Math.max(System.currentTimeMillis(), toEpochMillis(lastMillis));
+                updateWorkerLease(TimeUnit.SECONDS.toMillis(ID_WORKER_RELEASE_TTL), lastUsedAt);
+            } catch (Exception e) {
+                log.warn("释放worker id失败：{}", workerId, e);
+            }
+        }
+    }
+
 
     // 从格林威治时间
     private static final long  BEGIN_TIMESTAMP = 1640995200L;   // LocalDateTime.of(2022, 1, 1, 0, 0, 0).toEpochSecond(ZoneOffset.UTC)
@@ -27,6 +139,13 @@ public class RedisIdWorker {
     // 全局唯一id时间戳的偏移量
     private static final int COUNT_BITS = 32;
 
+    // snowflake：低32位 = [1][worker id 10位][序列号 21位]
+    private static final long SNOWFLAKE_FLAG = 1L << (COUNT_BITS - 1);
+    private static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = COUNT_BITS - 1 - WORKER_ID_BITS;
+    private static final int MAX_WORKER_ID = (1 << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
 
     /**
      *  生成全局唯一id
@@ -34,6 +153,13 @@ public class RedisIdWorker {
      * @return
      */
     public long nextId(String keyPrefix){
+        if (MODE_SEGMENT.equals(mode)) {
+            return buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextId();
+        }
+        if (MODE_SNOWFLAKE.equals(mode)) {
+            return nextSnowflakeId();
+        }
+
         // 1、生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowEpochSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -41,7 +167,7 @@ public class RedisIdWorker {
 
         // 2、生成序列号
         // 2.1 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2 自增长
         Long count = redisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
@@ -49,6 +175,246 @@ public class RedisIdWorker {
         return timeStamp << COUNT_BITS | count;
     }
 
+    /**
+     * snowflake模式生成id，worker id全局唯一，所以不同业务共用一个序列号即可
+     */
+    private synchronized long nextSnowflakeId() {
+        // 1、租约已过期（续期持续失败），worker id可能已被其他节点占用，重新租用
+        if (System.currentTimeMillis() >= workerLeaseExpireAt) {
+            leaseWorkerId();
+        }
+
+        // 2、时钟回拨：小的回拨等待时钟追上，大的回拨直接拒绝
+        long now = currentMillis();
+        if (now < lastMillis) {
+            long backward = lastMillis - now;
+            if (backward > maxBackwardMs) {
+                throw new IllegalStateException("时钟回拨" + backward + "ms，拒绝生成id");
+            }
+            log.warn("时钟回拨{}ms，等待时钟追上", backward);
+            now = waitUntil(lastMillis);
+        }
+
+        // 3、同一秒内序列号递增，用完后等到下一秒
+        long second = now / 1000;
+        if (lastMillis >= 0 && second == lastMillis / 1000) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                now = waitUntil((second + 1) * 1000);
+                second = now / 1000;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastMillis = now;
+
+        // 4、拼接返回，时间戳部分和redis模式一致
+        return second << COUNT_BITS | SNOWFLAKE_FLAG | (long) workerId << SEQUENCE_BITS | sequence;
+    }
 
+    /**
+     * 距BEGIN_TIMESTAMP的毫秒数，和redis模式一样是本地时间按UTC换算的结果
+     */
+    private long currentMillis() {
+        return System.currentTimeMillis() + zoneOffsetMillis - TimeUnit.SECONDS.toMillis(BEGIN_TIMESTAMP);
+    }
+
+    /**
+     * 把距BEGIN_TIMESTAMP的毫秒数换算回毫秒时间戳，redis中记录的是毫秒时间戳，不受各节点时区配置的影响
+     */
+    private long toEpochMillis(long millis) {
+        return millis + TimeUnit.SECONDS.toMillis(BEGIN_TIMESTAMP) - zoneOffsetMillis;
+    }
+
+    private long waitUntil(long targetMillis) {
+        long now = currentMillis();
+        while (now < targetMillis) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+            now = currentMillis();
+        }
+        return now;
+    }
 
+    /**
+     * 从随机位置开始依次尝试 id:worker:{0~1023}，SET NX占用第一个空闲的，
+     * 再等上一个持有者最后可能使用的那一秒过去，记下自己的租约后才开始生成id
+     */
+    private synchronized void leaseWorkerId() {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKER_ID + 1);
+        for (int i = 0; i <= MAX_WORKER_ID; i++) {
+            int candidate = (start + i) & MAX_WORKER_ID;
+            Boolean success = redisTemplate.opsForValue().setIfAbsent(
+                    workerKeys(candidate).get(0), workerOwner, workerLeaseMs, TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(success)) {
+                continue;
+            }
+            workerId = candidate;
+            // 1、上一个持有者的最后一秒过去之前不生成id，租约丢失时可能还没过去，正常释放时最多等1秒
+            String last = redisTemplate.opsForValue().get(workerKeys(candidate).get(1));
+            if (last != null) {
+                long lastSecond = (Long.parseLong(last) + zoneOffsetMillis - TimeUnit.SECONDS.toMillis(BEGIN_TIMESTAMP)) / 1000;
+                waitUntil((lastSecond + 1) * 1000);
+            }
+            // 2、记下本次租约，之后才生成id
+            long leaseAt = System.currentTimeMillis();
+            if (!updateWorkerLease(workerLeaseMs, leaseAt + workerLeaseMs)) {
+                continue;
+            }
+            workerLeaseExpireAt = leaseAt + workerLeaseMs;
+            return;
+        }
+        workerId = -1;
+        throw new IllegalStateException("没有空闲的worker id");
+    }
+
+    /**
+     * 续期或缩短租约，并记下本次租约内最后可能生成id的时间
+     *
+     * @param ttl        租约的毫秒数
+     * @param lastUsedAt 最后可能生成id的毫秒时间戳
+     * @return 租约是否还是自己的
+     */
+    private boolean updateWorkerLease(long ttl, long lastUsedAt) {
+        Long result = redisScriptRegistry.execute(ID_WORKER_SCRIPT, Long.class, workerKeys(workerId),
+                workerOwner, ttl, lastUsedAt, TimeUnit.DAYS.toMillis(ID_WORKER_LAST_TTL));
+        return result != null && result == 1;
+    }
+
+    /**
+     * 租约key和最后使用时间的key，带相同的hash tag，集群下脚本不会跨slot
+     */
+    private static List<String> workerKeys(int workerId) {
+        String tag = "{" + workerId + "}";
+        return Arrays.asList(ID_WORKER_KEY + tag, ID_WORKER_LAST_KEY + tag);
+    }
+
+    /**
+     * 定时续期worker id租约，续期失败说明租约已被其他节点占用，换一个新的
+     */
+    @Scheduled(fixedDelayString = "${hmdp.id.worker-heartbeat-ms:10000}", initialDelayString = "${hmdp.id.worker-heartbeat-ms:10000}")
+    public void renewWorkerId() {
+        if (!MODE_SNOWFLAKE.equals(mode)) {
+            return;
+        }
+        try {
+            long renewAt = System.currentTimeMillis();
+            if (updateWorkerLease(workerLeaseMs, renewAt + workerLeaseMs)) {
+                workerLeaseExpireAt = renewAt + workerLeaseMs;
+                return;
+            }
+            log.warn("worker id租约已丢失：{}，重新租用", workerId);
+            synchronized (this) {
+                leaseWorkerId();
+            }
+            log.info("已租用worker id：{}", workerId);
+        } catch (Exception e) {
+            log.warn("续期worker id失败：{}", workerId, e);
+        }
+    }
+
+    /**
+     * 当前的本地时间秒数，和LocalDateTime.now().toEpochSecond(ZoneOffset.UTC)一致，但不创建对象
+     */
+    private static long localEpochSecond() {
+        long millis = System.currentTimeMillis();
+        int offset = ZoneId.systemDefault().getRules().getOffset(Instant.ofEpochMilli(millis)).getTotalSeconds();
+        return millis / 1000 + offset;
+    }
+
+    /**
+     * 一段从redis申请到的序列号 [next, end]，只属于申请时的那一天
+     */
+    private static class Segment {
+
+        private final long epochDay;
+        private final AtomicLong next;
+        private final long end;
+        // 发放到这个序列号时开始预取下一段
+        private final long prefetchAt;
+
+        private Segment(long epochDay, long start, long end, long prefetchAt) {
+            this.epochDay = epochDay;
+            this.next = new AtomicLong(start);
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+        }
+    }
+
+    /**
+     * 一个业务的双号段：当前号段 + 预取的下一段
+     */
+    private class SegmentBuffer {
+
+        private final String keyPrefix;
+
+        private volatile Segment current;
+
+        private CompletableFuture<Segment> prefetching;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private long nextId() {
+            long now = localEpochSecond();
+            long epochDay = Math.floorDiv(now, SECONDS_PER_DAY);
+            Segment segment = current;
+            if (segment != null && segment.epochDay == epochDay) {
+                long count = segment.next.getAndIncrement();
+                if (count <= segment.end) {
+                    if (count == segment.prefetchAt) {
+                        prefetch(epochDay);
+                    }
+                    return (now - BEGIN_TIMESTAMP) << COUNT_BITS | count;
+                }
+            }
+            return nextIdSlow(now, epochDay);
+        }
+
+        /**
+         * 当前号段用完或者跨天：切换到预取的号段，预取的号段不可用时同步申请
+         */
+        private synchronized long nextIdSlow(long now, long epochDay) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.epochDay == epochDay) {
+                    long count = segment.next.getAndIncrement();
+                    if (count <= segment.end) {
+                        return (now - BEGIN_TIMESTAMP) << COUNT_BITS | count;
+                    }
+                }
+                Segment next = null;
+                if (prefetching != null) {
+                    try {
+                        next = prefetching.join();
+                    } catch (Exception e) {
+                        log.warn("预取号段失败，改为同步申请，业务：{}", keyPrefix, e);
+                    }
+                    prefetching = null;
+                }
+                // 跨天后前一天预取的号段作废，新的一天序列号从头开始
+                current = next != null && next.epochDay == epochDay ? next : fetch(epochDay);
+            }
+        }
+
+        private synchronized void prefetch(long epochDay) {
+            if (prefetching == null) {
+                prefetching = CompletableFuture.supplyAsync(() -> fetch(epochDay), prefetchExecutor);
+            }
+        }
+
+        /**
+         * INCRBY申请一段序列号，key按天区分，日期字符串每段只格式化一次
+         */
+        private Segment fetch(long epochDay) {
+            String key = "icr:" + keyPrefix + ":" + LocalDate.ofEpochDay(epochDay).format(DATE_FORMATTER);
+            Long end = redisTemplate.opsForValue().increment(key, segmentSize);
+            if (end == null) {
+                throw new IllegalStateException("申请号段失败：" + key);
+            }
+            long start = end - segmentSize + 1;
+            long prefetchAt = start + Math.max(0, Math.min(segmentSize - 1, (long) (segmentSize * (1 - prefetchRatio))));
+            return new Segment(epochDay, start, end, prefetchAt);
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * lua脚本注册表
+ * 启动时加载classpath根目录下所有的*.lua，按文件名（不含扩展名）注册，SCRIPT LOAD后缓存sha，
+ * 执行时只发送sha（EVALSHA），redis重启或SCRIPT FLUSH后返回NOSCRIPT时重新加载再执行一次；
+ * 每个脚本记录一个耗时直方图：redis.script{script=文件名}
+ */
+@Slf4j
+@Component
+public class RedisScriptRegistry {
+
+    private static final String SCRIPT_LOCATION = "classpath*:*.lua";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final MeterRegistry meterRegistry;
+
+    // 脚本名 -> 脚本，启动后只读
+    private final Map<String, LuaScript> scripts = new HashMap<>();
+
+    public RedisScriptRegistry(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources(SCRIPT_LOCATION)) {
+            String filename = resource.getFilename();
+            if (filename == null) {
+                continue;
+            }
+            String body;
+            try (InputStream in = resource.getInputStream()) {
+                body = IoUtil.read(in, StandardCharsets.UTF_8);
+            }
+            String name = filename.substring(0, filename.length() - ".lua".length());
+            Timer timer = Timer.builder("redis.script")
+                    .tag("script", name)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry);
+            scripts.put(name, new LuaScript(name, body.getBytes(StandardCharsets.UTF_8), DigestUtil.sha1Hex(body), timer));
+        }
+        // redis暂时不可用时不影响启动，第一次执行时会因为NOSCRIPT重新加载
+        try {
+            for (LuaScript script : scripts.values()) {
+                load(script);
+            }
+            log.info("lua脚本加载完成：{}", scripts.keySet());
+        } catch (Exception e) {
+            log.warn("lua脚本预加载失败，将在第一次执行时加载", e);
+        }
+    }
+
+    /**
+     * 执行脚本
+     *
+     * @param name       脚本名，即不含扩展名的文件名
+     * @param resultType 返回值类型：Long、Boolean、String
+     * @param keys       KEYS
+     * @param args       ARGV
+     */
+    public <T> T execute(String name, Class<T> resultType, List<String> keys, Object... args) {
+        LuaScript script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("lua脚本不存在：" + name);
+        }
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        for (int i = 0; i < keys.size(); i++) {
+            keysAndArgs[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        for (int i = 0; i < args.length; i++) {
+            keysAndArgs[keys.size() + i] = String.valueOf(args[i]).getBytes(StandardCharsets.UTF_8);
+        }
+        ReturnType returnType = ReturnType.fromJavaType(resultType);
+
+        Timer.Sample sample = Timer.start(meterRegistry);
+        try {
+            Object result;
+            try {
+                result = evalSha(script, returnType, keys.size(), keysAndArgs);
+            } catch (Exception e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                // redis中的脚本缓存被清空，重新加载后再执行一次
+                load(script);
+                result = evalSha(script, returnType, keys.size(), keysAndArgs);
+            }
+            if (result instanceof byte[]) {
+                result = new String((byte[]) result, StandardCharsets.UTF_8);
+            }
+            return resultType.cast(result);
+        } finally {
+            sample.stop(script.timer);
+        }
+    }
+
+    private Object evalSha(LuaScript script, ReturnType returnType, int numKeys, byte[][] keysAndArgs) {
+        return stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.scriptingCommands().evalSha(script.sha, returnType, numKeys, keysAndArgs));
+    }
+
+    private void load(LuaScript script) {
+        String sha = stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptingCommands().scriptLoad(script.body));
+        if (!script.sha.equals(sha)) {
+            // 正常不会出现，redis按脚本内容计算sha
+            log.warn("lua脚本sha不一致：{}，本地：{}，redis：{}", script.name, script.sha, sha);
+        }
+    }
+
+    private static boolean isNoScript(Exception e) {
+        String message = NestedExceptionUtils.getMostSpecificCause(e).getMessage();
+        return message != null && message.contains("NOSCRIPT");
+    }
+
+    private static class LuaScript {
+
+        private final String name;
+        private final byte[] body;
+        private final String sha;
+        private final Timer timer;
+
+        private LuaScript(String name, byte[] body, String sha, Timer timer) {
+            this.name = name;
+            this.body = body;
+            this.sha = sha;
+            this.timer = timer;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillLimitProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+
+/**
+ * 秒杀限流，两级：
+ * 1、节点内的令牌桶，超出本节点承受能力的请求直接拒绝，不访问redis；
+ * 2、redis中每个秒杀券一个全局滑动窗口，节点一次申请一批许可在本地消耗，大部分请求不需要访问redis
+ * 被拒绝时返回建议的重试等待时间
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+
+    // 全局滑动窗口的长度
+    private static final long WINDOW_MILLIS = 1000L;
+
+    private static final String SECKILL_LIMIT_SCRIPT = "seckill_limit";
+
+    @Resource
+    private SeckillLimitProperties seckillLimitProperties;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    // 秒杀券id -> 本节点的令牌桶
+    private final Map<Long, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    // 秒杀券id -> 本节点从redis申请到、还没用完的许可
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * 申请一次秒杀的许可
+     *
+     * @return 0表示放行，大于0表示被限流，值为建议的重试等待毫秒数
+     */
+    public long tryAcquire(Long voucherId) {
+        SeckillLimitProperties.Limit limit = seckillLimitProperties.of(voucherId);
+
+        // 1、本节点令牌桶
+        if (limit.getLocalQps() > 0) {
+            TokenBucket bucket = buckets.computeIfAbsent(voucherId,
+                    id -> new TokenBucket(limit.getLocalQps(), Math.max(limit.getLocalBurst(), 1)));
+            long wait = bucket.tryAcquire();
+            if (wait > 0) {
+                return wait;
+            }
+        }
+
+        // 2、全局滑动窗口
+        if (limit.getGlobalQps() > 0) {
+            Lease lease = leases.computeIfAbsent(voucherId, id -> new Lease());
+            return lease.tryAcquire(voucherId, limit);
+        }
+        return 0;
+    }
+
+    /**
+     * 令牌桶：按固定速率补充令牌，最多积攒capacity个
+     */
+    private static class TokenBucket {
+
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefillNanos;
+
+        private TokenBucket(int qps, int capacity) {
+            this.tokensPerNano = qps / (double) TimeUnit.SECONDS.toNanos(1);
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefillNanos = System.nanoTime();
+        }
+
+        /**
+         * @return 0表示拿到令牌，否则为下一个令牌到达的毫秒数
+         */
+        private synchronized long tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            long waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+        }
+    }
+
+    /**
+     * 从全局窗口申请到的一批许可，只在申请它的窗口内有效，过期后剩余的作废，避免积攒后集中放行
+     * 本地许可用CAS扣减，不加锁；许可用完时同一个券在本节点同一时刻只有一个线程去redis申请，
+     * 其余没有拿到许可的线程等它的结果，有许可可用的线程不受影响
+     */
+    private class Lease {
+
+        private final AtomicLong permits = new AtomicLong();
+        private volatile long expireAtMillis;
+
+        // 全局窗口没有余量时，这个时间之前不再去redis申请
+        private volatile long rejectedUntilMillis;
+
+        // 正在进行的申请，没有时为null
+        private final AtomicReference<CompletableFuture<Void>> refilling = new AtomicReference<>();
+
+        private long tryAcquire(Long voucherId, SeckillLimitProperties.Limit limit) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                // 1、本地许可
+                if (now < expireAtMillis && takePermit()) {
+                    return 0;
+                }
+                // 2、刚被全局窗口拒绝过
+                if (now < rejectedUntilMillis) {
+                    return rejectedUntilMillis - now;
+                }
+                // 3、已经有线程在申请，等它完成后重新扣减
+                CompletableFuture<Void> inflight = refilling.get();
+                if (inflight != null) {
+                    inflight.join();
+                    continue;
+                }
+                CompletableFuture<Void> mine = new CompletableFuture<>();
+                if (!refilling.compareAndSet(null, mine)) {
+                    continue;
+                }
+                try {
+                    return refill(voucherId, limit, now);
+                } finally {
+                    refilling.set(null);
+                    mine.complete(null);
+                }
+            }
+        }
+
+        private boolean takePermit() {
+            long current;
+            do {
+                current = permits.get();
+                if (current <= 0) {
+                    return false;
+                }
+            } while (!permits.compareAndSet(current, current - 1));
+            return true;
+        }
+
+        /**
+         * 去redis申请一批许可，自己用掉一个，剩下的留给本节点其他线程
+         */
+        private long refill(Long voucherId, SeckillLimitProperties.Limit limit, long now) {
+            Long result = redisScriptRegistry.execute(
+                    SECKILL_LIMIT_SCRIPT,
+                    Long.class,
+                    Collections.singletonList(SECKILL_LIMIT_KEY + voucherId),
+                    limit.getGlobalQps(),
+                    WINDOW_MILLIS,
+                    Math.max(limit.getLease(), 1)
+            );
+            if (result == null || result <= 0) {
+                long wait = result == null ? WINDOW_MILLIS : Math.max(1, -result);
+                permits.set(0);
+                rejectedUntilMillis = now + wait;
+                return wait;
+            }
+            permits.set(result - 1);
+            expireAtMillis = now + WINDOW_MILLIS;
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存
+ * 不分片时库存和已下单用户各一个key：seckill:stock:{voucherId}、seckill:order:{voucherId}，由seckill.lua原子完成判断、扣减和发送消息；
+ * 分片时库存拆到K个带hash tag的key：seckill:stock:{voucherId:i}，集群中分布在不同的节点上，
+ * 用户按userId固定落在一个分片，在该分片判断一人一单并扣减，库存不足时再去其他分片扣减，每个分片都不会扣成负数，所以总销量不会超过库存
+ */
+@Slf4j
+@Component
+public class SeckillStockClient {
+
+    // 秒杀结果：0成功，1库存不足，2重复下单，3未开始，4已结束
+    public static final int SECKILL_OK = 0;
+    public static final int SECKILL_SOLD_OUT = 1;
+    public static final int SECKILL_DUPLICATE = 2;
+    public static final int SECKILL_NOT_STARTED = 3;
+    public static final int SECKILL_ENDED = 4;
+
+    // 所属分片库存不足，需要去其他分片扣减，只在脚本和本类之间使用
+    private static final int SECKILL_SHARD_EMPTY = 5;
+
+    // 脚本名，对应resources下的lua文件
+    private static final String SECKILL_SCRIPT = "seckill";
+    private static final String SECKILL_SHARD_SCRIPT = "seckill_shard";
+    private static final String SECKILL_FALLOVER_SCRIPT = "seckill_fallover";
+    private static final String SECKILL_SNAPSHOT_SCRIPT = "seckill_snapshot";
+    private static final String SECKILL_STOCK_DEDUCT_SCRIPT = "seckill_stock_deduct";
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    // 每个秒杀券的库存分片数，1表示不分片；修改后需要重新写入进行中的秒杀券库存
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    /**
+     * 判断秒杀资格并扣减库存，成功时把订单发送到stream.orders
+     * 秒杀时间和库存一起保存在redis中，由脚本用redis服务器时间判断，不增加额外的请求
+     *
+     * @return 0成功，1库存不足，2重复下单，3未开始，4已结束
+     */
+    public int seckill(Long voucherId, Long userId, long orderId) {
+        if (stockShards <= 1) {
+            Long result = redisScriptRegistry.execute(
+                    SECKILL_SCRIPT,
+                    Long.class,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    String.valueOf(orderId)
+            );
+            return result.intValue();
+        }
+
+        // 1、在所属分片判断一人一单并扣减
+        int home = homeShard(userId);
+        String orderKey = SECKILL_ORDER_KEY + shardTag(voucherId, home);
+        Long result = redisScriptRegistry.execute(
+                SECKILL_SHARD_SCRIPT,
+                Long.class,
+                Arrays.asList(SECKILL_STOCK_KEY + shardTag(voucherId, home), orderKey,
+                        SECKILL_WINDOW_KEY + shardTag(voucherId, home)),
+                userId.toString()
+        );
+        int r = result.intValue();
+
+        // 2、所属分片库存不足，依次去其他分片扣减
+        if (r == SECKILL_SHARD_EMPTY) {
+            r = SECKILL_SOLD_OUT;
+            for (int i = 1; i < stockShards; i++) {
+                String stockKey = SECKILL_STOCK_KEY + shardTag(voucherId, (home + i) % stockShards);
+                Long fallover = redisScriptRegistry.execute(SECKILL_FALLOVER_SCRIPT, Long.class, Collections.singletonList(stockKey));
+                if (fallover != null && fallover == SECKILL_OK) {
+                    r = SECKILL_OK;
+                    break;
+                }
+            }
+            if (r == SECKILL_SOLD_OUT) {
+                // 所有分片都没有库存，撤销用户的登记
+                stringRedisTemplate.opsForSet().remove(orderKey, userId.toString());
+                return r;
+            }
+        }
+        if (r != SECKILL_OK) {
+            return r;
+        }
+
+        // 3、集群中stream和分片不在同一个slot，不能在脚本中发送，扣减成功后再发送
+        Map<String, String> order = new HashMap<>(4);
+        order.put("userId", userId.toString());
+        order.put("voucherId", voucherId.toString());
+        order.put("id", String.valueOf(orderId));
+        stringRedisTemplate.opsForStream().add(StreamRecords.newRecord().in(SECKILL_ORDER_STREAM_KEY).ofMap(order));
+        return SECKILL_OK;
+    }
+
+    /**
+     * 写入秒杀券库存和秒杀时间，覆盖已有的值，新增秒杀券时使用
+     */
+    public void setStock(SeckillVoucher seckillVoucher) {
+        Map<String, String> stocks = splitStock(seckillVoucher.getVoucherId(), seckillVoucher.getStock());
+        Map<byte[], byte[]> window = window(seckillVoucher);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            stocks.forEach((key, value) -> connection.stringCommands().set(bytes(key), bytes(value)));
+            if (window != null) {
+                for (String key : windowKeys(seckillVoucher.getVoucherId())) {
+                    connection.hashCommands().hMSet(bytes(key), window);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 补充库存，分片时按同样的规则把增量分到各个分片
+     */
+    public void addStock(Long voucherId, int count) {
+        Map<String, String> stocks = splitStock(voucherId, count);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            stocks.forEach((key, value) -> connection.stringCommands().incrBy(bytes(key), Long.parseLong(value)));
+            return null;
+        });
+    }
+
+    /**
+     * 扣减库存，不会把任何分片扣成负数：先按分片数平均分摊，某个分片不够时剩余的从其他分片扣
+     *
+     * @return 实际扣减的个数，所有分片加起来都不够时小于count
+     */
+    public long deductStock(Long voucherId, long count) {
+        List<String> keys = stockKeys(voucherId);
+        long remaining = count;
+        long share = (count + keys.size() - 1) / keys.size();
+        for (int pass = 0; pass < 2 && remaining > 0; pass++) {
+            for (String key : keys) {
+                if (remaining <= 0) {
+                    break;
+                }
+                Long deducted = redisScriptRegistry.execute(SECKILL_STOCK_DEDUCT_SCRIPT, Long.class,
+                        Collections.singletonList(key), pass == 0 ? Math.min(share, remaining) : remaining);
+                remaining -= deducted == null ? 0 : deducted;
+            }
+        }
+        return count - remaining;
+    }
+
+    /**
+     * 读取库存和已下单用户数，每个分片一次脚本，同一个分片的库存和已下单用户是原子读取的
+     *
+     * @return {是否有分片存在库存key(1/0), 库存, 已下单用户数}
+     */
+    public long[] snapshot(Long voucherId) {
+        List<String> stockKeys = stockKeys(voucherId);
+        List<String> orderKeys = orderKeys(voucherId);
+        long[] snapshot = new long[3];
+        for (int i = 0; i < stockKeys.size(); i++) {
+            List<?> result = redisScriptRegistry.execute(SECKILL_SNAPSHOT_SCRIPT, List.class,
+                    Arrays.asList(stockKeys.get(i), orderKeys.get(i)));
+            snapshot[0] |= ((Number) result.get(0)).longValue();
+            snapshot[1] += ((Number) result.get(1)).longValue();
+            snapshot[2] += ((Number) result.get(2)).longValue();
+        }
+        return snapshot;
+    }
+
+    /**
+     * 库存只在不存在时写入，不能覆盖redis中已经被扣减过的库存；秒杀时间以数据库为准，直接覆盖。预热时使用
+     */
+    public void setStockIfAbsent(Collection<SeckillVoucher> seckillVouchers) {
+        List<Map<String, String>> stocks = new ArrayList<>(seckillVouchers.size());
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            stocks.add(splitStock(seckillVoucher.getVoucherId(), seckillVoucher.getStock()));
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map<String, String> stock : stocks) {
+                stock.forEach((key, value) -> connection.stringCommands().setNX(bytes(key), bytes(value)));
+            }
+            for (SeckillVoucher seckillVoucher : seckillVouchers) {
+                Map<byte[], byte[]> window = window(seckillVoucher);
+                if (window == null) {
+                    continue;
+                }
+                for (String key : windowKeys(seckillVoucher.getVoucherId())) {
+                    connection.hashCommands().hMSet(bytes(key), window);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 秒杀时间转为毫秒时间戳，脚本中和redis的TIME比较；没有设置时间时返回null，不限制时间
+     */
+    private static Map<byte[], byte[]> window(SeckillVoucher seckillVoucher) {
+        if (seckillVoucher.getBeginTime() == null || seckillVoucher.getEndTime() == null) {
+            return null;
+        }
+        Map<byte[], byte[]> window = new HashMap<>(4);
+        window.put(bytes("begin"), bytes(String.valueOf(toEpochMilli(seckillVoucher.getBeginTime()))));
+        window.put(bytes("end"), bytes(String.valueOf(toEpochMilli(seckillVoucher.getEndTime()))));
+        return window;
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 库存key，分片时每个分片一个
+     */
+    public List<String> stockKeys(Long voucherId) {
+        return new ArrayList<>(splitStock(voucherId, 0).keySet());
+    }
+
+    /**
+     * 已下单用户的key，分片时每个分片一个
+     */
+    public List<String> orderKeys(Long voucherId) {
+        if (stockShards <= 1) {
+            return Collections.singletonList(SECKILL_ORDER_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(stockShards);
+        for (int i = 0; i < stockShards; i++) {
+            keys.add(SECKILL_ORDER_KEY + shardTag(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 秒杀时间的key，分片时每个分片一份，和分片库存在同一个slot
+     */
+    private List<String> windowKeys(Long voucherId) {
+        if (stockShards <= 1) {
+            return Collections.singletonList(SECKILL_WINDOW_KEY + voucherId);
+        }
+        List<String> keys = new ArrayList<>(stockShards);
+        for (int i = 0; i < stockShards; i++) {
+            keys.add(SECKILL_WINDOW_KEY + shardTag(voucherId, i));
+        }
+        return keys;
+    }
+
+    /**
+     * 库存平均分到各个分片，除不尽的部分从第一个分片开始每个多分一个
+     */
+    private Map<String, String> splitStock(Long voucherId, int stock) {
+        Map<String, String> stocks = new LinkedHashMap<>(stockShards * 2);
+        if (stockShards <= 1) {
+            stocks.put(SECKILL_STOCK_KEY + voucherId, String.valueOf(stock));
+            return stocks;
+        }
+        for (int i = 0; i < stockShards; i++) {
+            int shardStock = stock / stockShards + (i < stock % stockShards ? 1 : 0);
+            stocks.put(SECKILL_STOCK_KEY + shardTag(voucherId, i), String.valueOf(shardStock));
+        }
+        return stocks;
+    }
+
+    private int homeShard(Long userId) {
+        return Math.floorMod(Long.hashCode(userId), stockShards);
+    }
+
+    /**
+     * 分片的hash tag，同一个分片的库存key和订单key在同一个slot
+     */
+    private static String shardTag(Long voucherId, int shard) {
+        return "{" + voucherId + ":" + shard + "}";
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,152 @@
+package com.hmdp.utils;
+
+import com.hmdp.mapper.SeckillVoucherMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_RECONCILE_NAME;
+import static com.hmdp.utils.RedisConstants.LOCK_SECKILL_RECONCILE_TTL;
+
+/**
+ * 秒杀库存对账：redis中的库存在脚本中扣减，数据库中的库存由订单消费者异步扣减，两边各自满足
+ * redis库存 + 已下单用户数 = 数据库库存 + 订单数 = 初始库存（补充库存时两边同时增加）
+ * 两边的和与时间无关，但每一边都要读到一致的快照：数据库一条语句同时读库存和订单数，redis每个分片一次脚本原子读取
+ * 1、两边的和不相等：说明有人手工修改过库存或订单，开启修复时调整redis库存，让redis和数据库一致；
+ *    补充库存时数据库先提交、redis后增加，分片模式下跨分片扣减也不是原子的，都会短暂地不相等，
+ *    所以连续两轮差值相同才修复；
+ * 2、和相等但已下单用户数大于订单数：正常是还没消费的消息，连续两轮都没有减少则可能是消息丢失或进了死信队列，只告警
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+
+    @Resource
+    private SeckillVoucherMapper seckillVoucherMapper;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private LockClient lockClient;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 每轮对账的秒杀券数
+    @Value("${hmdp.seckill.reconcile.batch-size:200}")
+    private int batchSize;
+
+    // 发现库存不一致时是否修复redis库存
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean repair;
+
+    private Counter driftCounter;
+
+    private Counter repairCounter;
+
+    // 对账游标，上一轮处理到的券id，扫完一遍后回到0
+    private volatile long cursor;
+
+    // 券id -> 上一次对账时的差值
+    private final Map<Long, Long> lastDrifts = new ConcurrentHashMap<>();
+
+    // 券id -> 上一次对账时 已下单用户数 - 订单数
+    private final Map<Long, Long> lastOrderGaps = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        driftCounter = meterRegistry.counter("seckill.reconcile.drift");
+        repairCounter = meterRegistry.counter("seckill.reconcile.repair");
+    }
+
+    /**
+     * 定时对账，多个节点之间用分布式锁保证同一时刻只有一个节点在执行，执行时间超过租约时由看门狗续期
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval-ms:60000}", initialDelay = 60000)
+    public void reconcile() {
+        ILock lock = lockClient.getLock(LOCK_SECKILL_RECONCILE_NAME);
+        if (!lock.tryLock(LOCK_SECKILL_RECONCILE_TTL)) {
+            return;
+        }
+        try {
+            // 1、按券id游标读取一批秒杀券的库存和订单数
+            List<Map<String, Object>> rows = seckillVoucherMapper.selectStockSnapshot(cursor, batchSize);
+            cursor = rows.size() < batchSize ? 0 : number(rows.get(rows.size() - 1), "voucher_id");
+            for (Map<String, Object> row : rows) {
+                reconcile(number(row, "voucher_id"), number(row, "stock"), number(row, "orders"));
+            }
+        } catch (Exception e) {
+            log.error("秒杀库存对账失败", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 对账一个秒杀券
+     */
+    public void reconcile(Long voucherId, long dbStock, long dbOrders) {
+        // 1、redis中的库存和已下单用户数
+        long[] snapshot = seckillStockClient.snapshot(voucherId);
+        if (snapshot[0] == 0) {
+            // 没有写入redis的券（未预热或已结束很久）不参与秒杀，不需要对账
+            lastDrifts.remove(voucherId);
+            lastOrderGaps.remove(voucherId);
+            return;
+        }
+        // 2、比较
+        compare(voucherId, snapshot[1], snapshot[2], dbStock, dbOrders);
+    }
+
+    private void compare(Long voucherId, long redisStock, long redisSold, long dbStock, long dbOrders) {
+        // 1、两边的总量不一致
+        long drift = (redisStock + redisSold) - (dbStock + dbOrders);
+        Long lastDrift = drift != 0 ? lastDrifts.put(voucherId, drift) : lastDrifts.remove(voucherId);
+        if (drift != 0) {
+            driftCounter.increment();
+            log.warn("秒杀库存不一致，券：{}，redis库存：{}，redis已下单：{}，数据库库存：{}，数据库订单：{}，差值：{}",
+                    voucherId, redisStock, redisSold, dbStock, dbOrders, drift);
+            if (repair && lastDrift != null && lastDrift == drift) {
+                repair(voucherId, drift);
+                lastDrifts.remove(voucherId);
+            }
+        }
+
+        // 2、已下单用户数大于订单数，连续两轮没有减少时告警
+        long gap = redisSold - dbOrders;
+        Long lastGap = gap > 0 ? lastOrderGaps.put(voucherId, gap) : lastOrderGaps.remove(voucherId);
+        if (gap > 0 && lastGap != null && gap >= lastGap) {
+            log.warn("订单可能丢失，券：{}，redis已下单：{}，数据库订单：{}，请检查{}", voucherId, redisSold, dbOrders,
+                    RedisConstants.SECKILL_ORDER_DLQ_KEY);
+        }
+    }
+
+    /**
+     * 用增量调整，不会覆盖对账期间并发的扣减；分片时增量分到所有分片，扣减时不会把任何分片扣成负数
+     */
+    private void repair(Long voucherId, long drift) {
+        long adjusted;
+        if (drift < 0) {
+            seckillStockClient.addStock(voucherId, Math.toIntExact(-drift));
+            adjusted = -drift;
+        } else {
+            adjusted = -seckillStockClient.deductStock(voucherId, drift);
+        }
+        repairCounter.increment();
+        log.warn("已修复redis库存，券：{}，应调整：{}，实际调整：{}", voucherId, -drift, adjusted);
+    }
+
+    private static long number(Map<String, Object> row, String column) {
+        return ((Number) row.get(column)).longValue();
+    }
+}
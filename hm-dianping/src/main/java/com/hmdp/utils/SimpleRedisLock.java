@@ -2,14 +2,33 @@ package com.hmdp.utils;
 
 import cn.hutool.core.lang.UUID;
 
-import org.springframework.core.io.ClassPathResource;
+import cn.hutool.core.thread.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.hmdp.utils.RedisConstants.LOCK_FENCE_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_FENCE_TTL;
+import static com.hmdp.utils.RedisConstants.LOCK_UNLOCK_CHANNEL;
+
+/**
+ * 可重入的redis分布式锁，锁是一个hash：持有者标识 -> 重入次数
+ * 持有者是这个锁对象而不是线程，加锁和释放可以在不同线程（线程池、异步回调），同一个对象重复加锁即重入，
+ * 所以每次需要互斥的操作都要new一个新的锁对象
+ * 持有期间看门狗每隔租约的1/3续期一次，进程挂掉后最多一个租约时间锁自动过期
+ * 阻塞等待时靠unlock.lua发布的解锁通知唤醒，最多等到锁的剩余租约就重试一次，不轮询
+ * 锁的key是lock:{name}，fencing token计数器是lock:fence:{name}，带相同的hash tag，集群下脚本不会跨slot
+ */
+@Slf4j
 public class SimpleRedisLock implements ILock {
 
     private String name;        // 不同的name代表不同业务有不同的锁，有调用者指定
@@ -17,53 +36,205 @@ public class SimpleRedisLock implements ILock {
 
     private StringRedisTemplate stringRedisTemplate;
 
+    private RedisScriptRegistry redisScriptRegistry;
+
+    // 为null时没有解锁通知，阻塞等待退化为按固定间隔重试
+    private UnlockNotifier unlockNotifier;
+
     private static final String KEY_PREFIX = "lock:";
 
+    // fencing token计数器的过期毫秒数，一天没人加锁才会过期，过期后由lock.lua按当前时间重建
+    private static final long FENCE_TTL_MILLIS = TimeUnit.DAYS.toMillis(LOCK_FENCE_TTL);
+
     private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";         // 用uuid生成锁的唯一标识,解决集群环境下锁超时释放引发的线程安全问题
 
+    // 没有解锁通知时阻塞等待的重试间隔
+    private static final long RETRY_INTERVAL_MILLIS = 50L;
 
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    // 再静态代码块中初始化脚本
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));     // 指定脚本位置
-        UNLOCK_SCRIPT.setResultType(Long.class);        // 指定返回值类型
-    }
+    // 本进程内每个锁对象的序号
+    private static final AtomicLong OWNER_SEQUENCE = new AtomicLong();
+
+    // 加锁、释放锁、续期的脚本，对应resources下的lock.lua、unlock.lua、lock_renew.lua，由RedisScriptRegistry预加载
+    private static final String LOCK_SCRIPT = "lock";
+    private static final String UNLOCK_SCRIPT = "unlock";
+    private static final String RENEW_SCRIPT = "lock_renew";
 
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    // 所有锁共用的看门狗线程，续期只是一次脚本调用
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+            ThreadFactoryBuilder.create().setNamePrefix("lock-watchdog-").setDaemon(true).build());
+
+    private final String owner = ID_PREFIX + OWNER_SEQUENCE.incrementAndGet();
+
+    // 以下字段由this同步
+    private int holdCount;
+    private long leaseMillis;
+    private long fencingToken;
+    private ScheduledFuture<?> watchdog;
+
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisScriptRegistry = redisScriptRegistry;
     }
 
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, RedisScriptRegistry redisScriptRegistry,
+                           UnlockNotifier unlockNotifier) {
+        this(name, stringRedisTemplate, redisScriptRegistry);
+        this.unlockNotifier = unlockNotifier;
+    }
+
+    /**
+     * @param timeoutSec 租约时长，持有期间由看门狗自动续期
+     */
     @Override
     public boolean tryLock(long timeoutSec) {
-        String threadId = ID_PREFIX + Thread.currentThread().getId();
-        // 尝试获取锁
-        Boolean success = stringRedisTemplate.opsForValue().setIfAbsent(KEY_PREFIX + name, threadId, timeoutSec, TimeUnit.SECONDS);
+        return acquire(TimeUnit.SECONDS.toMillis(Math.max(timeoutSec, 1))) > 0;
+    }
 
-        return Boolean.TRUE.equals(success);        // 自动拆箱有风险,因为可能返回空指针,Hutool实现方式也是这样
+    /**
+     * @param leaseTime 租约时长，持有期间由看门狗自动续期
+     */
+    @Override
+    public boolean tryLock(long waitTime, long leaseTime, TimeUnit unit) throws InterruptedException {
+        long lease = Math.max(unit.toMillis(leaseTime), 1);
+        long deadline = System.nanoTime() + unit.toNanos(waitTime);
+        String key = lockKey();
+        Thread current = Thread.currentThread();
+        // 1、先登记再尝试，尝试失败到开始等待之间发出的通知也不会丢
+        if (unlockNotifier != null) {
+            unlockNotifier.register(key, current);
+        }
+        try {
+            while (true) {
+                // 2、尝试获取锁
+                long result = acquire(lease);
+                if (result > 0) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                // 3、等解锁通知，最多等到锁自然过期；没有通知时按固定间隔重试
+                long waitMillis = unlockNotifier != null ? -result : Math.min(-result, RETRY_INTERVAL_MILLIS);
+                LockSupport.parkNanos(this, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(waitMillis)));
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            if (unlockNotifier != null) {
+                unlockNotifier.unregister(key, current);
+            }
+        }
     }
 
     /**
-     * 释放锁,lua脚本实现
+     * 执行一次加锁脚本
+     * @return 成功返回fencing token，失败返回负数：锁剩余的毫秒数
+     */
+    private synchronized long acquire(long lease) {
+        Long result = redisScriptRegistry.execute(
+                LOCK_SCRIPT,
+                Long.class,
+                Arrays.asList(lockKey(), LOCK_FENCE_KEY + hashTag()),
+                owner,
+                lease,
+                FENCE_TTL_MILLIS
+        );
+        if (result == null) {
+            return -1;
+        }
+        if (result <= 0) {
+            return result;
+        }
+        fencingToken = result;
+        leaseMillis = lease;
+        if (holdCount++ == 0) {
+            startWatchdog(lease);
+        }
+        return result;
+    }
+
+    /**
+     * 释放锁,lua脚本实现，重入几次就要释放几次
      */
     @Override
-    public void unlock() {
+    public synchronized void unlock() {
+        if (holdCount == 0) {
+            return;
+        }
         // 调用lua脚本
-        stringRedisTemplate.execute(
+        Long result = redisScriptRegistry.execute(
                 UNLOCK_SCRIPT,
-                Collections.singletonList(KEY_PREFIX + name),           // key就是锁的key
-                ID_PREFIX + Thread.currentThread().getId()          // 值就是线程的uuid+threadId
+                Long.class,
+                Collections.singletonList(lockKey()),   // key就是锁的key
+                owner,                                  // 值就是锁对象的标识
+                leaseMillis,
+                LOCK_UNLOCK_CHANNEL                     // 解锁通知的频道
         );
+        if (result != null && result == 0) {
+            holdCount--;
+            return;
+        }
+        if (result != null && result < 0) {
+            log.warn("锁已过期或被其他持有者获取：{}", name);
+        }
+        // 最后一次释放，或者锁已经不是自己的
+        holdCount = 0;
+        fencingToken = 0;
+        stopWatchdog();
     }
-   /* @Override
-    public void unlock() {
-        // 1、获取线程标识
-        String threadId = ID_PREFIX + Thread.currentThread().getId();
-        // 1、获取锁标识
-        String lockValue = stringRedisTemplate.opsForValue().get(KEY_PREFIX + name);
-        if (threadId.equals(lockValue)){
-            stringRedisTemplate.delete(KEY_PREFIX + name);
+
+    @Override
+    public synchronized long getFencingToken() {
+        return fencingToken;
+    }
+
+    private String lockKey() {
+        return KEY_PREFIX + hashTag();
+    }
+
+    private String hashTag() {
+        return "{" + name + "}";
+    }
+
+    private void startWatchdog(long lease) {
+        long period = Math.max(lease / 3, 1);
+        watchdog = WATCHDOG.scheduleWithFixedDelay(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopWatchdog() {
+        if (watchdog != null) {
+            watchdog.cancel(false);
+            watchdog = null;
         }
-    }*/
+    }
+
+    /**
+     * 看门狗续期，锁已经不是自己的（过期后被别人获取）时停止续期
+     */
+    private synchronized void renew() {
+        if (holdCount == 0) {
+            return;
+        }
+        try {
+            Long result = redisScriptRegistry.execute(
+                    RENEW_SCRIPT,
+                    Long.class,
+                    Collections.singletonList(lockKey()),
+                    owner,
+                    leaseMillis
+            );
+            if (result == null || result == 0) {
+                log.warn("锁已丢失，停止续期：{}", name);
+                holdCount = 0;
+                fencingToken = 0;
+                stopWatchdog();
+            }
+        } catch (Exception e) {
+            // redis暂时不可用，下一次继续续期
+            log.warn("锁续期失败：{}", name, e);
+        }
+    }
 }
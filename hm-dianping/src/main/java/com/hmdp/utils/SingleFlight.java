@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * 请求合并（single-flight）：同一个key同一时刻只允许一个线程执行加载，其余线程等待同一个结果
+ * 只合并本节点内的并发请求，节点之间仍然由redis互斥锁来仲裁
+ */
+@Component
+public class SingleFlight {
+
+    // key -> 正在进行中的加载
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 执行加载，如果该key已经有线程在加载，则等待它完成并共享结果
+     *
+     * @param key    合并的维度，一般就是缓存key
+     * @param loader 真正的加载逻辑
+     * @return 加载结果
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> running = calls.putIfAbsent(key, call);
+        if (running != null) {
+            // 已经有线程在加载，等它完成后被唤醒
+            return (T) await(running);
+        }
+        try {
+            T value = loader.get();
+            call.complete(value);
+            return value;
+        } catch (Throwable e) {
+            // 异常也要通知等待的线程，否则它们会一直阻塞
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    private Object await(CompletableFuture<Object> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
+        }
+    }
+}
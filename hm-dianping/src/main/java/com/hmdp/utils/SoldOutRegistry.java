@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本节点已售罄的秒杀券，售罄后的请求直接在进程内拒绝，不再访问redis、不再生成订单id
+ * 某个节点发现售罄时通过redis的发布订阅通知所有节点，补充库存时同样广播清除
+ * 消息格式：+voucherId 售罄，-voucherId 补充库存
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    private static final char SOLD_OUT = '+';
+    private static final char REPLENISHED = '-';
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 售罄标记的有效期，过期后放一个请求去redis确认；用来兜底标记和补充库存的广播乱序
+    @Value("${hmdp.seckill.sold-out-ttl-ms:60000}")
+    private long soldOutTtlMillis;
+
+    // 秒杀券id -> 标记的过期时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    public boolean isSoldOut(Long voucherId) {
+        Long expireAt = soldOut.get(voucherId);
+        if (expireAt == null) {
+            return false;
+        }
+        if (expireAt < System.currentTimeMillis()) {
+            soldOut.remove(voucherId, expireAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄并通知其他节点，已经标记过的不重复广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (isSoldOut(voucherId)) {
+            return;
+        }
+        soldOut.put(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+        publish(SOLD_OUT, voucherId);
+    }
+
+    /**
+     * 补充库存后清除所有节点的售罄标记
+     */
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        publish(REPLENISHED, voucherId);
+    }
+
+    private void publish(char op, Long voucherId) {
+        try {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, op + voucherId.toString());
+        } catch (Exception e) {
+            // 广播失败只影响其他节点，它们会在自己的请求返回库存不足时标记
+            log.warn("售罄广播失败，券：{}", voucherId, e);
+        }
+    }
+
+    /**
+     * 收到其他节点（包括自己）的广播
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (body.length() < 2) {
+            return;
+        }
+        Long voucherId = Long.valueOf(body.substring(1));
+        if (body.charAt(0) == SOLD_OUT) {
+            soldOut.putIfAbsent(voucherId, System.currentTimeMillis() + soldOutTtlMillis);
+        } else if (body.charAt(0) == REPLENISHED) {
+            soldOut.remove(voucherId);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 分布式锁的解锁通知：unlock.lua最后一次释放锁时向lock:unlock发布锁的key，
+ * 本节点在等这把锁的线程被立即唤醒去重试，不用轮询
+ */
+@Component
+public class UnlockNotifier implements MessageListener {
+
+    // 锁的key -> 正在等待的线程
+    private final Map<String, Set<Thread>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * 在第一次尝试加锁之前登记，避免错过登记前发出的通知
+     */
+    public void register(String key, Thread thread) {
+        waiters.compute(key, (k, threads) -> {
+            if (threads == null) {
+                threads = ConcurrentHashMap.newKeySet();
+            }
+            threads.add(thread);
+            return threads;
+        });
+    }
+
+    public void unregister(String key, Thread thread) {
+        waiters.computeIfPresent(key, (k, threads) -> {
+            threads.remove(thread);
+            return threads.isEmpty() ? null : threads;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Set<Thread> threads = waiters.get(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (threads == null) {
+            return;
+        }
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.hmdp.utils.codec;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.RedisData;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 二进制编解码
+ * 格式：[魔数 1字节][标志位 1字节][负载]，负载超过阈值时整体压缩
+ * 负载：[逻辑过期时间 8字节，可选][类型标签 1字节][实体的二进制数据，未注册的类型退化为json]
+ * 读取时不是以魔数开头的值按json解析，所以切换编码方式不需要清空redis
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xB1;
+
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_EXPIRE = 1 << 1;
+
+    // 未注册二进制格式的类型，负载直接存json
+    private static final byte TAG_JSON = 0;
+
+    private final JsonCacheCodec jsonCodec = new JsonCacheCodec();
+
+    private final Map<Class<?>, Byte> tags = new HashMap<>();
+
+    private final BinarySchema<?>[] schemas = new BinarySchema<?>[16];
+
+    // 负载超过多少字节才压缩，太小的值压缩后反而更大
+    private final int compressThreshold;
+
+    public BinaryCacheCodec(int compressThreshold) {
+        this.compressThreshold = compressThreshold;
+        // 标签一旦使用就不能修改，只能新增；2曾经分配给ShopType，不再复用
+        register(1, Shop.class, EntitySchemas.SHOP);
+        register(3, Blog.class, EntitySchemas.BLOG);
+        register(4, UserDTO.class, EntitySchemas.USER_DTO);
+    }
+
+    private <T> void register(int tag, Class<T> type, BinarySchema<T> schema) {
+        tags.put(type, (byte) tag);
+        schemas[tag] = schema;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return frame(value, 0, 0L);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        if (!isBinary(bytes)) {
+            return jsonCodec.decode(bytes, type);
+        }
+        return unframe(bytes, type).getData();
+    }
+
+    @Override
+    public <T> byte[] encodeLogical(RedisData<T> redisData) {
+        LocalDateTime expireTime = redisData.getExpireTime();
+        long expireMillis = expireTime.toEpochSecond(ZoneOffset.UTC) * 1000 + expireTime.getNano() / 1_000_000;
+        return frame(redisData.getData(), FLAG_EXPIRE, expireMillis);
+    }
+
+    @Override
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> type) {
+        if (!isBinary(bytes)) {
+            return jsonCodec.decodeLogical(bytes, type);
+        }
+        return unframe(bytes, type);
+    }
+
+    private boolean isBinary(byte[] bytes) {
+        return bytes.length > 1 && bytes[0] == MAGIC;
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] frame(Object value, int flags, long expireMillis) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+        if ((flags & FLAG_EXPIRE) != 0) {
+            for (int i = 56; i >= 0; i -= 8) {
+                payload.write((int) (expireMillis >>> i));
+            }
+        }
+        Byte tag = value == null ? null : tags.get(value.getClass());
+        byte[] data;
+        if (tag == null) {
+            payload.write(TAG_JSON);
+            data = jsonCodec.encode(value);
+        } else {
+            payload.write(tag);
+            BinaryWriter writer = new BinaryWriter();
+            ((BinarySchema<Object>) schemas[tag]).write(value, writer);
+            data = writer.toByteArray();
+        }
+        payload.write(data, 0, data.length);
+
+        byte[] body = payload.toByteArray();
+        if (body.length >= compressThreshold) {
+            byte[] compressed = deflate(body);
+            if (compressed.length < body.length) {
+                body = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        byte[] bytes = new byte[body.length + 2];
+        bytes[0] = MAGIC;
+        bytes[1] = (byte) flags;
+        System.arraycopy(body, 0, bytes, 2, body.length);
+        return bytes;
+    }
+
+    private <T> RedisData<T> unframe(byte[] bytes, Class<T> type) {
+        int flags = bytes[1];
+        byte[] payload = bytes;
+        int position = 2;
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            payload = inflate(bytes, 2);
+            position = 0;
+        }
+
+        RedisData<T> redisData = new RedisData<>();
+        if ((flags & FLAG_EXPIRE) != 0) {
+            long expireMillis = 0;
+            for (int i = 0; i < 8; i++) {
+                expireMillis = (expireMillis << 8) | (payload[position++] & 0xFF);
+            }
+            redisData.setExpireTime(LocalDateTime.ofEpochSecond(Math.floorDiv(expireMillis, 1000L),
+                    (int) Math.floorMod(expireMillis, 1000L) * 1_000_000, ZoneOffset.UTC));
+        }
+
+        byte tag = payload[position++];
+        if (tag == TAG_JSON) {
+            String json = new String(payload, position, payload.length - position, StandardCharsets.UTF_8);
+            redisData.setData(JSONUtil.toBean(json, type));
+        } else {
+            redisData.setData(type.cast(schemas[tag].read(new BinaryReader(payload, position))));
+        }
+        return redisData;
+    }
+
+    /**
+     * 用最快的压缩级别，缓存读写更看重速度而不是压缩率
+     */
+    private static byte[] deflate(byte[] input) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] input, int offset) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input, offset, input.length - offset);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length * 3);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("缓存数据被截断，无法解压");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("缓存数据解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.hmdp.utils.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * 二进制读取器，和BinaryWriter的写入顺序一一对应
+ */
+public class BinaryReader {
+
+    private final byte[] bytes;
+
+    private int position;
+
+    private final long bitmap;
+
+    private int index;
+
+    public BinaryReader(byte[] bytes, int offset) {
+        this.bytes = bytes;
+        this.position = offset;
+        this.bitmap = readVarLong();
+    }
+
+    public Long readLong() {
+        return present() ? unzigzag(readVarLong()) : null;
+    }
+
+    public Integer readInt() {
+        return present() ? (int) unzigzag(readVarLong()) : null;
+    }
+
+    public Double readDouble() {
+        if (!present()) {
+            return null;
+        }
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (bytes[position++] & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    public String readString() {
+        if (!present()) {
+            return null;
+        }
+        int length = (int) readVarLong();
+        String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+        position += length;
+        return value;
+    }
+
+    public LocalDateTime readTime() {
+        if (!present()) {
+            return null;
+        }
+        long millis = unzigzag(readVarLong());
+        return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L),
+                (int) Math.floorMod(millis, 1000L) * 1_000_000, ZoneOffset.UTC);
+    }
+
+    private boolean present() {
+        return (bitmap & (1L << index++)) != 0;
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[position++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
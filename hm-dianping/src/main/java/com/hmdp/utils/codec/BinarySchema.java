@@ -0,0 +1,12 @@
+package com.hmdp.utils.codec;
+
+/**
+ * 某个实体的二进制格式：字段按固定顺序读写，不写字段名
+ * 新增字段只能追加在最后，不能调整已有字段的顺序
+ */
+public interface BinarySchema<T> {
+
+    void write(T value, BinaryWriter writer);
+
+    T read(BinaryReader reader);
+}
@@ -0,0 +1,95 @@
+package com.hmdp.utils.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * 二进制写入器
+ * 格式：[非空字段位图 varint][各个非空字段]，null字段只占位图中的一个bit
+ * 整数用zigzag + varint，小数字只占1~2个字节
+ */
+public class BinaryWriter {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(128);
+
+    // 第i位为1表示第i个字段非空
+    private long bitmap;
+
+    private int index;
+
+    public BinaryWriter writeLong(Long value) {
+        if (mark(value)) {
+            writeVarLong(body, zigzag(value));
+        }
+        return this;
+    }
+
+    public BinaryWriter writeInt(Integer value) {
+        if (mark(value)) {
+            writeVarLong(body, zigzag(value));
+        }
+        return this;
+    }
+
+    public BinaryWriter writeDouble(Double value) {
+        if (mark(value)) {
+            long bits = Double.doubleToLongBits(value);
+            for (int i = 56; i >= 0; i -= 8) {
+                body.write((int) (bits >>> i));
+            }
+        }
+        return this;
+    }
+
+    public BinaryWriter writeString(String value) {
+        if (mark(value)) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(body, bytes.length);
+            body.write(bytes, 0, bytes.length);
+        }
+        return this;
+    }
+
+    public BinaryWriter writeTime(LocalDateTime value) {
+        if (mark(value)) {
+            // 精确到毫秒，按UTC换算，和服务器时区无关
+            long millis = value.toEpochSecond(ZoneOffset.UTC) * 1000 + value.getNano() / 1_000_000;
+            writeVarLong(body, zigzag(millis));
+        }
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 10);
+        writeVarLong(out, bitmap);
+        byte[] bytes = body.toByteArray();
+        out.write(bytes, 0, bytes.length);
+        return out.toByteArray();
+    }
+
+    private boolean mark(Object value) {
+        int i = index++;
+        if (i >= Long.SIZE) {
+            throw new IllegalStateException("二进制编码最多支持64个字段");
+        }
+        if (value == null) {
+            return false;
+        }
+        bitmap |= 1L << i;
+        return true;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
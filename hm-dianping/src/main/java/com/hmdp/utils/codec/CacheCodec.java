@@ -0,0 +1,43 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.utils.RedisData;
+
+/**
+ * 缓存值的编解码器，决定实体以什么格式存进redis
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码普通缓存值
+     *
+     * @param value 缓存的对象
+     * @return 写入redis的字节
+     */
+    byte[] encode(Object value);
+
+    /**
+     * 解码普通缓存值
+     *
+     * @param bytes redis中读到的字节
+     * @param type  目标类型
+     * @return 解码后的对象
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 编码带逻辑过期时间的缓存值
+     *
+     * @param redisData 数据和逻辑过期时间
+     * @return 写入redis的字节
+     */
+    <T> byte[] encodeLogical(RedisData<T> redisData);
+
+    /**
+     * 解码带逻辑过期时间的缓存值，数据部分按type还原，不会因为泛型擦除变成JSONObject
+     *
+     * @param bytes redis中读到的字节
+     * @param type  数据部分的类型
+     * @return 数据和逻辑过期时间
+     */
+    <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,105 @@
+package com.hmdp.utils.codec;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.Shop;
+
+/**
+ * 需要二进制编码的实体格式
+ * 只编码表中真实存在的字段，@TableField(exist = false)的展示字段不进缓存
+ */
+public final class EntitySchemas {
+
+    private EntitySchemas() {
+    }
+
+    public static final BinarySchema<Shop> SHOP = new BinarySchema<Shop>() {
+        @Override
+        public void write(Shop shop, BinaryWriter writer) {
+            writer.writeLong(shop.getId())
+                    .writeString(shop.getName())
+                    .writeLong(shop.getTypeId())
+                    .writeString(shop.getImages())
+                    .writeString(shop.getArea())
+                    .writeString(shop.getAddress())
+                    .writeDouble(shop.getX())
+                    .writeDouble(shop.getY())
+                    .writeLong(shop.getAvgPrice())
+                    .writeInt(shop.getSold())
+                    .writeInt(shop.getComments())
+                    .writeInt(shop.getScore())
+                    .writeString(shop.getOpenHours())
+                    .writeTime(shop.getCreateTime())
+                    .writeTime(shop.getUpdateTime());
+        }
+
+        @Override
+        public Shop read(BinaryReader reader) {
+            return new Shop()
+                    .setId(reader.readLong())
+                    .setName(reader.readString())
+                    .setTypeId(reader.readLong())
+                    .setImages(reader.readString())
+                    .setArea(reader.readString())
+                    .setAddress(reader.readString())
+                    .setX(reader.readDouble())
+                    .setY(reader.readDouble())
+                    .setAvgPrice(reader.readLong())
+                    .setSold(reader.readInt())
+                    .setComments(reader.readInt())
+                    .setScore(reader.readInt())
+                    .setOpenHours(reader.readString())
+                    .setCreateTime(reader.readTime())
+                    .setUpdateTime(reader.readTime());
+        }
+    };
+
+    public static final BinarySchema<Blog> BLOG = new BinarySchema<Blog>() {
+        @Override
+        public void write(Blog blog, BinaryWriter writer) {
+            writer.writeLong(blog.getId())
+                    .writeLong(blog.getShopId())
+                    .writeLong(blog.getUserId())
+                    .writeString(blog.getTitle())
+                    .writeString(blog.getImages())
+                    .writeString(blog.getContent())
+                    .writeInt(blog.getLiked())
+                    .writeInt(blog.getComments())
+                    .writeTime(blog.getCreateTime())
+                    .writeTime(blog.getUpdateTime());
+        }
+
+        @Override
+        public Blog read(BinaryReader reader) {
+            return new Blog()
+                    .setId(reader.readLong())
+                    .setShopId(reader.readLong())
+                    .setUserId(reader.readLong())
+                    .setTitle(reader.readString())
+                    .setImages(reader.readString())
+                    .setContent(reader.readString())
+                    .setLiked(reader.readInt())
+                    .setComments(reader.readInt())
+                    .setCreateTime(reader.readTime())
+                    .setUpdateTime(reader.readTime());
+        }
+    };
+
+    public static final BinarySchema<UserDTO> USER_DTO = new BinarySchema<UserDTO>() {
+        @Override
+        public void write(UserDTO user, BinaryWriter writer) {
+            writer.writeLong(user.getId())
+                    .writeString(user.getNickName())
+                    .writeString(user.getIcon());
+        }
+
+        @Override
+        public UserDTO read(BinaryReader reader) {
+            UserDTO user = new UserDTO();
+            user.setId(reader.readLong());
+            user.setNickName(reader.readString());
+            user.setIcon(reader.readString());
+            return user;
+        }
+    };
+}
@@ -0,0 +1,44 @@
+package com.hmdp.utils.codec;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.utils.RedisData;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * json编解码，和之前直接用JSONUtil存字符串的格式完全一致
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> byte[] encodeLogical(RedisData<T> redisData) {
+        return encode(redisData);
+    }
+
+    @Override
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Class<T> type) {
+        // 先按RedisData解析出过期时间，此时data还是JSONObject，再按传入的type转换
+        RedisData<?> raw = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setExpireTime(raw.getExpireTime());
+        Object data = raw.getData();
+        if (data instanceof JSONObject) {
+            redisData.setData(((JSONObject) data).toBean(type));
+        } else {
+            redisData.setData(Convert.convert(type, data));
+        }
+        return redisData;
+    }
+}
@@ -69,6 +69,21 @@ CREATE TABLE `tb_blog_comments`  (
 -- Records of tb_blog_comments
 -- ----------------------------
 
+-- ----------------------------
+-- Table structure for tb_cache_outbox
+-- ----------------------------
+DROP TABLE IF EXISTS `tb_cache_outbox`;
+CREATE TABLE `tb_cache_outbox`  (
+  `id` bigint(20) UNSIGNED NOT NULL AUTO_INCREMENT COMMENT '主键',
+  `table_name` varchar(64) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '发生变更的表',
+  `row_id` bigint(20) UNSIGNED NOT NULL COMMENT '发生变更的行的主键',
+  `op` char(1) CHARACTER SET utf8mb4 COLLATE utf8mb4_general_ci NOT NULL COMMENT '变更类型，I：新增；U：修改；D：删除',
+  `shop_id` bigint(20) UNSIGNED NULL DEFAULT NULL COMMENT '关联的商铺id',
+  `old_type_id` bigint(20) UNSIGNED NULL DEFAULT NULL COMMENT '变更前的商铺类型id，用于维护GEO',
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+  PRIMARY KEY (`id`) USING BTREE
+) ENGINE = InnoDB AUTO_INCREMENT = 1 CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
+
 -- ----------------------------
 -- Table structure for tb_follow
 -- ----------------------------
@@ -1278,11 +1293,57 @@ CREATE TABLE `tb_voucher_order`  (
   `use_time` timestamp NULL DEFAULT NULL COMMENT '核销时间',
   `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-  PRIMARY KEY (`id`) USING BTREE
+  PRIMARY KEY (`id`) USING BTREE,
+  UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`) USING BTREE COMMENT '一人一单',
+  INDEX `idx_voucher_id`(`voucher_id`) USING BTREE COMMENT '按券统计订单数'
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
 -- Records of tb_voucher_order
 -- ----------------------------
 
+
+-- ----------------------------
+-- Triggers structure for table tb_shop
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_shop_after_insert`;
+delimiter ;;
+CREATE TRIGGER `tb_shop_after_insert` AFTER INSERT ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_shop', NEW.id, 'I', NEW.id)
+;;
+delimiter ;
+DROP TRIGGER IF EXISTS `tb_shop_after_update`;
+delimiter ;;
+CREATE TRIGGER `tb_shop_after_update` AFTER UPDATE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`, `old_type_id`) VALUES ('tb_shop', NEW.id, 'U', NEW.id, OLD.type_id)
+;;
+delimiter ;
+DROP TRIGGER IF EXISTS `tb_shop_after_delete`;
+delimiter ;;
+CREATE TRIGGER `tb_shop_after_delete` AFTER DELETE ON `tb_shop` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`, `old_type_id`) VALUES ('tb_shop', OLD.id, 'D', OLD.id, OLD.type_id)
+;;
+delimiter ;
+
+-- ----------------------------
+-- Triggers structure for table tb_voucher
+-- ----------------------------
+DROP TRIGGER IF EXISTS `tb_voucher_after_insert`;
+delimiter ;;
+CREATE TRIGGER `tb_voucher_after_insert` AFTER INSERT ON `tb_voucher` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_voucher', NEW.id, 'I', NEW.shop_id)
+;;
+delimiter ;
+DROP TRIGGER IF EXISTS `tb_voucher_after_update`;
+delimiter ;;
+CREATE TRIGGER `tb_voucher_after_update` AFTER UPDATE ON `tb_voucher` FOR EACH ROW BEGIN
+  INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_voucher', NEW.id, 'U', NEW.shop_id);
+  IF NEW.shop_id <> OLD.shop_id THEN
+    INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_voucher', OLD.id, 'U', OLD.shop_id);
+  END IF;
+END
+;;
+delimiter ;
+DROP TRIGGER IF EXISTS `tb_voucher_after_delete`;
+delimiter ;;
+CREATE TRIGGER `tb_voucher_after_delete` AFTER DELETE ON `tb_voucher` FOR EACH ROW INSERT INTO `tb_cache_outbox` (`table_name`, `row_id`, `op`, `shop_id`) VALUES ('tb_voucher', OLD.id, 'D', OLD.shop_id)
+;;
+delimiter ;
+
 SET FOREIGN_KEY_CHECKS = 1;
@@ -0,0 +1,28 @@
+---
+--- 续期或释放snowflake的worker id租约，只有租约的持有者才能操作
+--- 释放时不删除key，只把过期时间缩短到一个宽限期，由key自然过期
+---
+
+-- 1.参数列表
+-- 1.1.租约key id:worker:{workerId}
+local key = KEYS[1]
+-- 1.2.持有者最后可能使用的时间 id:worker:last:{workerId}，和租约key带相同的hash tag
+local lastKey = KEYS[2]
+-- 1.3.持有者标识
+local owner = ARGV[1]
+-- 1.4.租约的毫秒数，释放时是宽限期
+local ttl = tonumber(ARGV[2])
+-- 1.5.本次租约内最后可能生成id的时间（毫秒时间戳）
+local lastMillis = ARGV[3]
+-- 1.6.lastKey的过期毫秒数，远大于租约
+local lastTtl = tonumber(ARGV[4])
+
+-- 2.租约已经过期或被其他节点占用
+if(redis.call('get', key) ~= owner) then
+    return 0
+end
+
+-- 3.续期或缩短到宽限期，并记录最后可能使用的时间，下一个持有者要等这个时间所在的秒过去后才能生成id
+redis.call('pexpire', key, ttl)
+redis.call('set', lastKey, lastMillis, 'px', lastTtl)
+return 1
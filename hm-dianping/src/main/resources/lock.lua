@@ -0,0 +1,42 @@
+---
+--- 可重入锁加锁：锁是一个hash，持有者标识 -> 重入次数，token -> 本次持有的fencing token
+---
+
+-- 1.参数列表
+-- 1.1.锁的key lock:{name}
+local key = KEYS[1]
+-- 1.2.fencing token计数器 lock:fence:{name}，和锁的key带相同的hash tag，集群下在同一个slot
+local fenceKey = KEYS[2]
+-- 1.3.持有者标识
+local owner = ARGV[1]
+-- 1.4.租约毫秒数
+local ttl = tonumber(ARGV[2])
+-- 1.5.计数器的过期毫秒数，远大于租约，每次加锁都会续上
+local fenceTtl = tonumber(ARGV[3])
+
+-- 2.没有人持有，加锁并发放新的token
+if(redis.call('exists', key) == 0) then
+    -- 2.1.计数器不存在（第一次加锁或长时间没用已过期）时用当前微秒时间作为起点，
+    -- 过期前发出的token不会超过 过期前的起点+加锁次数，所以重建后的token仍然比之前的大
+    if(redis.call('exists', fenceKey) == 0) then
+        local now = redis.call('time')
+        redis.call('set', fenceKey, tonumber(now[1]) * 1000000 + tonumber(now[2]))
+    end
+    local token = redis.call('incr', fenceKey)
+    redis.call('pexpire', fenceKey, fenceTtl)
+    redis.call('hset', key, owner, 1)
+    redis.call('hset', key, 'token', token)
+    redis.call('pexpire', key, ttl)
+    return token
+end
+
+-- 3.自己持有，重入次数加1，token不变
+if(redis.call('hexists', key, owner) == 1) then
+    redis.call('hincrby', key, owner, 1)
+    redis.call('pexpire', key, ttl)
+    return tonumber(redis.call('hget', key, 'token'))
+end
+
+-- 4.别人持有，返回负数：锁剩余的毫秒数
+local pttl = redis.call('pttl', key)
+return -math.max(pttl, 1)
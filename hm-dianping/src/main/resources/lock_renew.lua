@@ -0,0 +1,11 @@
+---
+--- 看门狗续期：锁还被自己持有时延长租约
+---
+
+-- 1.KEYS[1]锁的key，ARGV[1]持有者标识，ARGV[2]租约毫秒数
+if(redis.call('hexists', KEYS[1], ARGV[1]) == 1) then
+    redis.call('pexpire', KEYS[1], ARGV[2])
+    return 1
+end
+-- 2.锁已经过期或被释放，看门狗停止
+return 0
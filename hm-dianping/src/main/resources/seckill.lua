@@ -17,8 +17,24 @@ local orderId = ARGV[3]
 local stockKey = 'seckill:stock:' .. voucherId
 -- 2.2.订单key
 local orderKey = 'seckill:order:' .. voucherId
+-- 2.3.秒杀时间key，hash：begin、end，毫秒时间戳
+local windowKey = 'seckill:window:' .. voucherId
 
 -- 3.脚本业务
+-- 3.0.判断秒杀是否在进行中，使用redis服务器时间，所有节点一致；没有写入时间的券不校验
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1] and window[2]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(window[1])) then
+        -- 秒杀未开始，返回3
+        return 3
+    end
+    if(now > tonumber(window[2])) then
+        -- 秒杀已结束，返回4
+        return 4
+    end
+end
 -- 3.1.判断库存是否充足 get stockKey
 if(tonumber(redis.call('get', stockKey)) <= 0) then
 -- 3.2.库存不足，返回1
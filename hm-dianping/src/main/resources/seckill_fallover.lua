@@ -0,0 +1,11 @@
+---
+--- 分片库存模式下，用户所属分片库存不足时到其他分片扣减
+---
+
+-- KEYS[1]是分片库存key，库存充足则扣减返回0，否则返回1
+local stock = tonumber(redis.call('get', KEYS[1]))
+if(stock ~= nil and stock > 0) then
+    redis.call('incrby', KEYS[1], -1)
+    return 0
+end
+return 1
@@ -0,0 +1,43 @@
+---
+--- 秒杀券全局限流：滑动窗口计数，用当前窗口和上一个窗口的计数按时间加权估算最近一个窗口内的请求数
+--- 每次申请一批许可由节点在本地消耗，减少访问redis的次数
+---
+
+-- 1.参数列表
+-- 1.1.限流key seckill:limit:{voucherId}，hash：窗口序号 -> 该窗口发放的许可数
+local key = KEYS[1]
+-- 1.2.每个窗口最多发放的许可数
+local limit = tonumber(ARGV[1])
+-- 1.3.窗口长度，毫秒
+local window = tonumber(ARGV[2])
+-- 1.4.本次申请的许可数
+local requested = tonumber(ARGV[3])
+
+-- 2.使用redis服务器时间，所有节点一致
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+local index = math.floor(now / window)
+local offset = now - index * window
+
+-- 3.估算最近一个窗口内已经发放的许可数
+local current = tonumber(redis.call('hget', key, index)) or 0
+local previous = tonumber(redis.call('hget', key, index - 1)) or 0
+local used = math.floor(previous * (window - offset) / window) + current
+local available = limit - used
+
+-- 4.没有余量，返回负数：需要等待的毫秒数
+if(available <= 0) then
+    local wait = window - offset
+    if(current < limit and previous > 0) then
+        -- 上一个窗口的权重随时间衰减，估算衰减出一个许可需要的时间
+        wait = math.min(wait, math.ceil((used - limit + 1) * window / previous))
+    end
+    return -math.max(wait, 1)
+end
+
+-- 5.发放许可，清理更早的窗口
+local granted = math.min(available, requested)
+redis.call('hincrby', key, index, granted)
+redis.call('hdel', key, index - 2)
+redis.call('pexpire', key, window * 2)
+return granted
@@ -0,0 +1,42 @@
+---
+--- 分片库存模式下的秒杀资格判断，只操作用户所属的分片
+--- KEYS[1]、KEYS[2]、KEYS[3]带有相同的hash tag，在集群中位于同一个slot
+---
+
+-- 1.参数列表
+-- 1.1.分片库存key seckill:stock:{voucherId:i}
+local stockKey = KEYS[1]
+-- 1.2.分片订单key seckill:order:{voucherId:i}
+local orderKey = KEYS[2]
+-- 1.3.分片秒杀时间key seckill:window:{voucherId:i}，hash：begin、end，毫秒时间戳
+local windowKey = KEYS[3]
+-- 1.4.用户id
+local userId = ARGV[1]
+
+-- 2.判断秒杀是否在进行中，使用redis服务器时间；没有写入时间的券不校验
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if(window[1] and window[2]) then
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(window[1])) then
+        return 3
+    end
+    if(now > tonumber(window[2])) then
+        return 4
+    end
+end
+
+-- 3.判断用户是否下单，同一个用户总是落在同一个分片，一人一单只需要查这一个分片
+if(redis.call('sismember', orderKey, userId) == 1) then
+    return 2
+end
+-- 4.先登记用户，即使本分片库存不足，在去其他分片扣减期间同一用户的重复请求也会被拦截
+redis.call('sadd', orderKey, userId)
+-- 5.本分片库存充足，扣减后返回0
+local stock = tonumber(redis.call('get', stockKey))
+if(stock ~= nil and stock > 0) then
+    redis.call('incrby', stockKey, -1)
+    return 0
+end
+-- 6.本分片库存不足，返回5，由调用方去其他分片扣减
+return 5
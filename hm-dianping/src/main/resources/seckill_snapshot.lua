@@ -0,0 +1,12 @@
+---
+--- 库存对账：原子地读取一个库存分片的剩余库存和已下单用户数，读取期间不会有秒杀脚本插进来
+---
+
+-- KEYS[1]库存key，KEYS[2]已下单用户的set，两者在同一个slot
+-- 返回 {库存key是否存在, 库存, 已下单用户数}
+local stock = redis.call('get', KEYS[1])
+local sold = redis.call('scard', KEYS[2])
+if(stock == false) then
+    return {0, 0, sold}
+end
+return {1, tonumber(stock), sold}
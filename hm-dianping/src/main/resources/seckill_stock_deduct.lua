@@ -0,0 +1,12 @@
+---
+--- 库存对账修复：从一个库存分片扣减最多ARGV[1]个库存，不会扣成负数
+---
+
+-- KEYS[1]库存key，返回实际扣减的个数
+local stock = tonumber(redis.call('get', KEYS[1]))
+if(stock == nil or stock <= 0) then
+    return 0
+end
+local deducted = math.min(stock, tonumber(ARGV[1]))
+redis.call('incrby', KEYS[1], -deducted)
+return deducted
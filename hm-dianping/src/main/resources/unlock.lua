@@ -6,11 +6,18 @@
 
 -- 通过lua脚本来保证redis分布式锁的原子性
 
--- 这里的KEY[1]就是锁的key,这里的ARG[1]就是当前线程标识
--- 获取锁中的标识,判断是否与当前线程标识一致
-if(redis.call('GET',KEY[1]) == ARG[1]) then
-    -- 一致,则删除锁
-    return redis.call('DEL',KEY[1])
+-- 这里的KEYS[1]就是锁的key,ARGV[1]就是持有者标识,ARGV[2]是还有重入时续上的租约毫秒数,ARGV[3]是解锁通知的频道
+-- 频道不是key,不放在KEYS里,集群下不参与slot计算
+-- 锁不是自己的,直接返回-1
+if(redis.call('HEXISTS', KEYS[1], ARGV[1]) == 0) then
+    return -1
 end
--- 不一致,直接返回0
-return 0
\ No newline at end of file
+-- 重入次数减1,还有重入时续上租约,返回0
+if(redis.call('HINCRBY', KEYS[1], ARGV[1], -1) > 0) then
+    redis.call('PEXPIRE', KEYS[1], ARGV[2])
+    return 0
+end
+-- 最后一次释放,删除锁,通知等待的节点,返回1
+redis.call('DEL', KEYS[1])
+redis.call('PUBLISH', ARGV[3], KEYS[1])
+return 1
@@ -1,9 +1,23 @@
 package com.hmdp;
 
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Blog;
+import com.hmdp.entity.CacheOutbox;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.utils.CacheOutboxRelay;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilter;
+import com.hmdp.utils.LocalCache;
+import com.hmdp.utils.LocalLockTable;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScriptRegistry;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.UnlockNotifier;
+import com.hmdp.utils.codec.BinaryCacheCodec;
+import com.hmdp.utils.codec.CacheCodec;
+import com.hmdp.utils.codec.JsonCacheCodec;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -16,15 +30,24 @@ import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 
@@ -44,10 +67,10 @@ class HmDianPingApplicationTests {
         ExecutorService es = Executors.newFixedThreadPool(500);
         CountDownLatch latch = new CountDownLatch(300);
         // 定义一个可运行的对象task，包含一个Lambda表达式
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
         Runnable task = () -> {
             for (int i = 0; i < 100; i++) {
-                long id = redisIdWorker.nextId("order");
-                System.out.println("id=" + id);
+                ids.add(redisIdWorker.nextId("order"));
             }
             // 调用latch对象的countDown方法，减少计数器1
             latch.countDown();
@@ -58,8 +81,37 @@ class HmDianPingApplicationTests {
         }
         latch.await();
         long end = System.currentTimeMillis();
-        System.out.println("Time : " + (end - begin));
+        System.out.println("Time : " + (end - begin) + ", ids/s : " + 30000 * 1000L / Math.max(end - begin, 1));
+        // 每个id都不重复
+        assert ids.size() == 30000;
+
+    }
 
+    @Test
+    void testIdWorkerSwitchToSnowflake() {
+        Object mode = ReflectionTestUtils.getField(redisIdWorker, "mode");
+        try {
+            // 1、先用redis模式生成一批id
+            ReflectionTestUtils.setField(redisIdWorker, "mode", "redis");
+            Set<Long> legacyIds = new HashSet<>();
+            for (int i = 0; i < 1000; i++) {
+                legacyIds.add(redisIdWorker.nextId("order"));
+            }
+            long maxLegacyId = Collections.max(legacyIds);
+
+            // 2、切换到snowflake模式继续生成，和之前的id不重复，并且都比之前的大、保持递增
+            ReflectionTestUtils.setField(redisIdWorker, "mode", "snowflake");
+            redisIdWorker.init();
+            long last = maxLegacyId;
+            for (int i = 0; i < 10000; i++) {
+                long id = redisIdWorker.nextId("order");
+                assert !legacyIds.contains(id);
+                assert id > last;
+                last = id;
+            }
+        } finally {
+            ReflectionTestUtils.setField(redisIdWorker, "mode", mode);
+        }
     }
 
 
@@ -111,4 +163,189 @@ class HmDianPingApplicationTests {
         }
     }
 
+
+    @Test
+    void testCacheCodec() {
+        // 数据库的时间精确到秒，编码精确到毫秒，这里按毫秒截断后比较
+        LocalDateTime now = LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS);
+        Shop shop = new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号")
+                .setX(120.149192).setY(30.316078).setAvgPrice(80L)
+                .setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(now).setUpdateTime(now);
+        RedisData<Shop> redisData = new RedisData<>();
+        redisData.setData(shop);
+        redisData.setExpireTime(now.plusSeconds(30));
+        // 有空字段的实体
+        Shop sparseShop = new Shop().setId(2L).setName("没有图片的店").setTypeId(2L)
+                .setX(120.0).setY(30.0).setCreateTime(now);
+        Blog blog = new Blog().setId(3L).setShopId(1L).setUserId(4L).setTitle("探店").setContent("好吃")
+                .setLiked(0).setComments(null).setCreateTime(now).setUpdateTime(now);
+        UserDTO user = new UserDTO();
+        user.setId(4L);
+        user.setNickName("user_4");
+
+        Map<String, CacheCodec> codecs = new LinkedHashMap<>();
+        codecs.put("json", new JsonCacheCodec());
+        codecs.put("binary", new BinaryCacheCodec(1024));
+
+        int rounds = 200000;
+        for (Map.Entry<String, CacheCodec> entry : codecs.entrySet()) {
+            CacheCodec codec = entry.getValue();
+            byte[] bytes = codec.encodeLogical(redisData);
+
+            // 编码后解码得到的对象和原来的每个字段都相等，包括空字段和逻辑过期时间
+            RedisData<Shop> decodedData = codec.decodeLogical(bytes, Shop.class);
+            assert shop.equals(decodedData.getData()) : entry.getKey();
+            assert redisData.getExpireTime().equals(decodedData.getExpireTime()) : entry.getKey();
+            assert sparseShop.equals(codec.decode(codec.encode(sparseShop), Shop.class)) : entry.getKey();
+            assert blog.equals(codec.decode(codec.encode(blog), Blog.class)) : entry.getKey();
+            assert user.equals(codec.decode(codec.encode(user), UserDTO.class)) : entry.getKey();
+
+            // 粗略的耗时对比，不是JMH基准测试，只用来观察两种编码的数量级差异
+            // 预热
+            for (int i = 0; i < rounds; i++) {
+                codec.decodeLogical(codec.encodeLogical(redisData), Shop.class);
+            }
+
+            long begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                codec.encodeLogical(redisData);
+            }
+            long encodeNs = (System.nanoTime() - begin) / rounds;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                codec.decodeLogical(bytes, Shop.class);
+            }
+            long decodeNs = (System.nanoTime() - begin) / rounds;
+
+            System.out.println(entry.getKey() + " : " + bytes.length + " bytes, encode " + encodeNs
+                    + " ns/op, decode " + decodeNs + " ns/op");
+        }
+    }
+
+    @Test
+    void testIdBloomFilter() {
+        int n = 100000;
+        IdBloomFilter filter = new IdBloomFilter(n, 0.01);
+        for (long id = 1; id <= n; id++) {
+            filter.put(id);
+        }
+        // 已存在的id不能误判为不存在
+        for (long id = 1; id <= n; id++) {
+            assert filter.mightContain(id);
+        }
+        // 统计不存在的id的误判率
+        int falsePositives = 0;
+        for (long id = n + 1; id <= 2L * n; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        System.out.println("bits=" + filter.getNumBits() + ", fpp=" + (double) falsePositives / n);
+
+        // 从redis位图同步到另一个节点的过滤器后，判断结果一致
+        IdBloomFilter synced = new IdBloomFilter(n, 0.01);
+        synced.mergeRedisBitmap(filter.toRedisBitmap());
+        for (long id = 1; id <= 2L * n; id++) {
+            assert synced.mightContain(id) == filter.mightContain(id);
+        }
+    }
+
+    @Test
+    void testHotKeyDetector() {
+        HotKeyDetector detector = new HotKeyDetector(new LocalCache(stringRedisTemplate), 0.1, 5000, 10);
+        // 一个热点key，加上大量只访问几次的普通key
+        for (int i = 0; i < 100000; i++) {
+            detector.record("cache:shop:1");
+            detector.record("cache:shop:" + (i % 20000 + 2));
+        }
+        detector.rotate();
+        assert detector.isHot("cache:shop:1");
+        assert !detector.isHot("cache:shop:2");
+        System.out.println(detector.getTopKeys());
+
+        // 整个窗口滑过之后没有新的访问，自动降级
+        for (int i = 0; i < 10; i++) {
+            detector.rotate();
+        }
+        assert !detector.isHot("cache:shop:1");
+    }
+
+    @Test
+    void testLocalLockTable() {
+        LocalLockTable table = new LocalLockTable();
+        // 不同的锁名各自一把本地锁，同一个线程可以同时持有
+        Semaphore a = table.retain("cache:shop:1");
+        Semaphore b = table.retain("cache:shop:2");
+        assert a != b;
+        assert a.tryAcquire() && b.tryAcquire();
+        // 同名的锁共用一把，被占用时拿不到
+        Semaphore sameAsA = table.retain("cache:shop:1");
+        assert sameAsA == a && !sameAsA.tryAcquire();
+        table.release("cache:shop:1");
+        a.release();
+        table.release("cache:shop:1");
+        b.release();
+        table.release("cache:shop:2");
+        // 全部归还后不再占用内存
+        assert table.size() == 0;
+    }
+
+    @Resource
+    private RedisScriptRegistry redisScriptRegistry;
+
+    @Resource
+    private UnlockNotifier unlockNotifier;
+
+    @Test
+    void testLockWaitWakesOnUnlock() throws InterruptedException {
+        // 两个锁对象相当于两个节点，锁的租约30秒，持有者200毫秒后释放
+        String name = "test:contention";
+        SimpleRedisLock holder = new SimpleRedisLock(name, stringRedisTemplate, redisScriptRegistry, unlockNotifier);
+        SimpleRedisLock waiter = new SimpleRedisLock(name, stringRedisTemplate, redisScriptRegistry, unlockNotifier);
+        assert holder.tryLock(30);
+        long holderToken = holder.getFencingToken();
+        ExecutorService es = Executors.newSingleThreadExecutor();
+        es.submit(() -> {
+            Thread.sleep(200);
+            holder.unlock();
+            return null;
+        });
+        try {
+            long begin = System.currentTimeMillis();
+            assert waiter.tryLock(5, 30, TimeUnit.SECONDS);
+            long waited = System.currentTimeMillis() - begin;
+            System.out.println("waited " + waited + " ms");
+            // 由解锁通知唤醒，而不是等到租约过期或等待超时
+            assert waited < 2000;
+            assert waiter.getFencingToken() > holderToken;
+        } finally {
+            waiter.unlock();
+            es.shutdown();
+        }
+    }
+
+    @Resource
+    private CacheOutboxRelay cacheOutboxRelay;
+
+    @Test
+    void testCacheOutboxRelay() {
+        stringRedisTemplate.opsForValue().set("cache:shop:1", "stale");
+        stringRedisTemplate.opsForValue().set("cache:shop-voucher:1", "stale");
+        // 同一个店铺的多次变更只处理一次
+        List<CacheOutbox> events = new ArrayList<>();
+        events.add(new CacheOutbox().setTableName("tb_shop").setRowId(1L).setOp("U").setShopId(1L).setOldTypeId(1L));
+        events.add(new CacheOutbox().setTableName("tb_shop").setRowId(1L).setOp("U").setShopId(1L).setOldTypeId(1L));
+        events.add(new CacheOutbox().setTableName("tb_voucher").setRowId(1L).setOp("U").setShopId(1L));
+        cacheOutboxRelay.handle(events);
+
+        assert !Boolean.TRUE.equals(stringRedisTemplate.hasKey("cache:shop:1"));
+        assert !Boolean.TRUE.equals(stringRedisTemplate.hasKey("cache:shop-voucher:1"));
+        // 店铺类型没变，GEO中仍然存在
+        assert stringRedisTemplate.opsForGeo().position("shop:geo:1", "1").get(0) != null;
+    }
+
 }